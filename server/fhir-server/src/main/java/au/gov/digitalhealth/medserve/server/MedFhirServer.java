@@ -7,15 +7,23 @@ import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import ca.uhn.fhir.rest.api.EncodingEnum;
 import org.springframework.web.cors.CorsConfiguration;
 
+import au.gov.digitalhealth.medserve.server.bundleprovider.SignedPagingProvider;
 import au.gov.digitalhealth.medserve.server.index.Index;
+import au.gov.digitalhealth.medserve.server.interceptor.BundleExtensionInterceptor;
+import au.gov.digitalhealth.medserve.server.interceptor.PageLinkInterceptor;
+import au.gov.digitalhealth.medserve.server.interceptor.PassThroughInterceptor;
+import au.gov.digitalhealth.medserve.server.interceptor.ResponseCacheFilter;
+import au.gov.digitalhealth.medserve.server.resourceprovider.BatchProvider;
+import au.gov.digitalhealth.medserve.server.resourceprovider.ExportHandler;
 import au.gov.digitalhealth.medserve.server.resourceprovider.MedicationResourceProvider;
 import au.gov.digitalhealth.medserve.server.resourceprovider.OrganizationResourceProvider;
 import au.gov.digitalhealth.medserve.server.resourceprovider.SubstanceResourceProvider;
-import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
 import ca.uhn.fhir.rest.server.HardcodedServerAddressStrategy;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.RestfulServer;
@@ -27,7 +35,13 @@ public class MedFhirServer extends RestfulServer {
 
     private String baseUrl = System.getenv("MEDSERVE_FHIR_BASE");
 
-    private static FifoMemoryPagingProvider pp = new FifoMemoryPagingProvider(100);
+    private transient Index index;
+
+    private transient BatchProvider batchProvider;
+
+    private transient ResponseCacheFilter responseCache;
+
+    private transient ExportHandler exportHandler;
 
     /**
      * The initialize method is automatically called when the servlet is starting up, so it can
@@ -42,18 +56,29 @@ public class MedFhirServer extends RestfulServer {
          * setResourceProviders()
          */
         List<IResourceProvider> resourceProviders = new ArrayList<IResourceProvider>();
-        Index index;
         try {
             index = new Index();
         } catch (IOException e) {
             throw new ServletException("Could not create index for " + Index.INDEX_LOCATION);
         }
-        resourceProviders.add(new MedicationResourceProvider(index));
-        resourceProviders.add(new SubstanceResourceProvider(index));
-        resourceProviders.add(new OrganizationResourceProvider(index));
+        MedicationResourceProvider medicationProvider = new MedicationResourceProvider(index);
+        SubstanceResourceProvider substanceProvider = new SubstanceResourceProvider(index);
+        OrganizationResourceProvider organizationProvider = new OrganizationResourceProvider(index);
+        resourceProviders.add(medicationProvider);
+        resourceProviders.add(substanceProvider);
+        resourceProviders.add(organizationProvider);
         setResourceProviders(resourceProviders);
+        batchProvider = new BatchProvider(index, getFhirContext());
+        setPlainProviders(batchProvider);
+        responseCache = new ResponseCacheFilter(index);
+        exportHandler = new ExportHandler(index, getFhirContext());
         setDefaultResponseEncoding(EncodingEnum.JSON);
 
+        // Page links hold the search they're for, so any server can serve them without keeping the search
+        SignedPagingProvider pp = new SignedPagingProvider(getFhirContext())
+            .addSearch("Medication", medicationProvider::search)
+            .addSearch("Substance", substanceProvider::searchByText)
+            .addSearch("Organization", organizationProvider::searchByText);
         pp.setDefaultPageSize(10);
         pp.setMaximumPageSize(100);
         setPagingProvider(pp);
@@ -76,10 +101,52 @@ public class MedFhirServer extends RestfulServer {
         CorsInterceptor interceptor = new CorsInterceptor(config);
         registerInterceptor(interceptor);
 
+        // Serve stored resource JSON directly when no projection of it is requested
+        registerInterceptor(new PassThroughInterceptor());
+
+        // Add extensions computed by searches, such as facet counts, to their Bundles. Outgoing responses go through
+        // interceptors in reverse order, so this runs before the response is written by the one above
+        registerInterceptor(new BundleExtensionInterceptor());
+
+        // Add the cursor of the page each page link is for to the link, likewise before the response is written
+        registerInterceptor(new PageLinkInterceptor(pp));
+
         // Set base FHIR endpoint, based upon the `MEDSERVE_FHIR_BASE` configuration variable.
         if (baseUrl != null && baseUrl != "") {
             log("Setting server FHIR base to " + baseUrl);
             setServerAddressStrategy(new HardcodedServerAddressStrategy(baseUrl));
         }
     }
+
+    @Override
+    protected void service(HttpServletRequest theReq, HttpServletResponse theResp)
+            throws ServletException, IOException {
+        if (exportHandler != null && exportHandler.isExport(theReq)) {
+            // Streamed straight from the index, far too large to go through HAPI or the response cache
+            exportHandler.handle(theReq, theResp);
+        } else if (responseCache == null) {
+            super.service(theReq, theResp);
+        } else {
+            responseCache.doFilter(theReq, theResp,
+                (request, response) -> super.service((HttpServletRequest) request, (HttpServletResponse) response));
+        }
+    }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+        if (responseCache != null) {
+            responseCache.destroy();
+        }
+        if (batchProvider != null) {
+            batchProvider.close();
+        }
+        if (index != null) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                log("Failed closing index " + Index.INDEX_LOCATION, e);
+            }
+        }
+    }
 }
@@ -0,0 +1,82 @@
+package au.gov.digitalhealth.medserve.server.bundleprovider;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import au.gov.digitalhealth.medserve.server.Util;
+import au.gov.digitalhealth.medserve.server.index.Inclusion;
+import au.gov.digitalhealth.medserve.server.index.SearchSession;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+/**
+ * The results of a search, served a page at a time from its {@link SearchSession}. Along with the session it holds
+ * the resource type searched and the raw parameters of the search, from which {@link SignedPagingProvider} creates
+ * the token later pages are requested with.
+ * <p>
+ * The size isn't asked of the session until it is needed, so a session resuming from a page's cursor can be given the
+ * cursor first, see {@link SearchSession#size()}.
+ */
+public class SearchBundleProvider implements IBundleProvider {
+    private String resourceName;
+    private Map<String, String[]> parameters;
+    private SearchSession session;
+    private List<Inclusion> inclusions;
+    private InstantDt searchTime;
+    private Integer pageSize;
+
+    public SearchBundleProvider(String resourceName, Map<String, String[]> parameters, SearchSession session,
+            List<Inclusion> inclusions, Integer pageSize) {
+        this.resourceName = resourceName;
+        this.parameters = parameters;
+        this.session = session;
+        this.inclusions = inclusions;
+        this.searchTime = InstantDt.withCurrentTime();
+        this.pageSize = Util.getCount(pageSize);
+    }
+
+    public String getResourceName() {
+        return resourceName;
+    }
+
+    public Map<String, String[]> getParameters() {
+        return parameters;
+    }
+
+    public SearchSession getSession() {
+        return session;
+    }
+
+    @Override
+    public IPrimitiveType<Date> getPublished() {
+        return searchTime;
+    }
+
+    @Override
+    public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+        if (theFromIndex >= session.size()) {
+            return Collections.emptyList();
+        }
+        return session.getResources(theFromIndex, theToIndex, inclusions);
+    }
+
+    @Override
+    public String getUuid() {
+        return null;
+    }
+
+    @Override
+    public Integer preferredPageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public Integer size() {
+        return session.size();
+    }
+}
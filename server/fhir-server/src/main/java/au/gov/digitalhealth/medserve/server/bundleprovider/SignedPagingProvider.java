@@ -0,0 +1,247 @@
+package au.gov.digitalhealth.medserve.server.bundleprovider;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import au.gov.digitalhealth.medserve.server.index.PagingCursor;
+import au.gov.digitalhealth.medserve.server.index.SearchSession;
+import au.gov.digitalhealth.medserve.server.resourceprovider.SearchParameters;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.BasePagingProvider;
+import ca.uhn.fhir.util.UrlUtil;
+
+/**
+ * Pages searches without keeping any state on the server. The id a search's page links are requested with is a token
+ * holding the resource type searched, its parameters in a normalised order and the index generation it searched,
+ * signed with an HMAC so it can't be altered. A page request runs the search again from the token, so any server
+ * sharing the same <code>paging.secret</code> (or <code>MEDSERVE_PAGING_SECRET</code> environment variable) can
+ * serve any page of any search for as long as the index generation is published. Without a secret a random one is
+ * used, and links only work on the server that created them.
+ * <p>
+ * Pages within the first {@link SearchSession#MAX_SESSION_DOCS} results come from the window the search collects.
+ * HAPI links every page of a search with the same id and the page's offset, so
+ * {@link au.gov.digitalhealth.medserve.server.interceptor.PageLinkInterceptor} rewrites the id of a Bundle's next and
+ * previous links to also hold the {@link PagingCursor} of the page they are for, when the session knows it. A page
+ * past the window then continues from its cursor with a search-after, only counting the total rather than collecting
+ * the window and skipping every result before it, so following next links costs the same however deep the page is.
+ * <p>
+ * A cursor is only used against the index generation it came from. Once that generation has been replaced the token's
+ * page is deliberately served from the current generation by its offset, as a search session's pages are, which
+ * costs in proportion to the offset, as does a page requested by an offset the token has no cursor for.
+ */
+public class SignedPagingProvider extends BasePagingProvider {
+
+    private static final Logger logger = Logger.getLogger(SignedPagingProvider.class.getCanonicalName());
+
+    private static final String SECRET =
+            System.getProperty("paging.secret", System.getenv("MEDSERVE_PAGING_SECRET"));
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /**
+     * Parameters that don't change which results a search returns, so aren't held in the token.
+     */
+    private static final List<String> IGNORED_PARAMETERS = Arrays.asList(Constants.PARAM_COUNT,
+        Constants.PARAM_FORMAT, Constants.PARAM_PRETTY, Constants.PARAM_SUMMARY, Constants.PARAM_ELEMENTS,
+        Constants.PARAM_NARRATIVE, Constants.PARAM_PAGINGACTION, Constants.PARAM_PAGINGOFFSET,
+        Constants.PARAM_BUNDLETYPE.toString(), "_facet");
+
+    /**
+     * Runs a search from its raw parameters.
+     */
+    @FunctionalInterface
+    public interface Search {
+        IBundleProvider search(SearchParameters parameters) throws IOException;
+    }
+
+    private FhirContext context;
+    private SecretKeySpec key;
+    private Map<String, Search> searches = new HashMap<>();
+    private ThreadLocal<SearchBundleProvider> paged = new ThreadLocal<>();
+
+    public SignedPagingProvider(FhirContext context) {
+        this.context = context;
+        byte[] secret;
+        if (SECRET == null || SECRET.isEmpty()) {
+            logger.warning("No paging.secret set, page links will only work on this server until it is restarted");
+            secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+        } else {
+            secret = SECRET.getBytes(StandardCharsets.UTF_8);
+        }
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+    }
+
+    /**
+     * Sets how the pages of searches of the resource type are served.
+     */
+    public SignedPagingProvider addSearch(String resourceName, Search search) {
+        searches.put(resourceName, search);
+        return this;
+    }
+
+    @Override
+    public String storeResultList(IBundleProvider theList) {
+        if (!(theList instanceof SearchBundleProvider)) {
+            throw new IllegalArgumentException("Only search results can be paged, not " + theList.getClass());
+        }
+        SearchBundleProvider search = (SearchBundleProvider) theList;
+        paged.set(search);
+        return createId(search.getSession().getGeneration() + "\n" + search.getResourceName() + "\n"
+                + toQueryString(search.getParameters()));
+    }
+
+    /**
+     * @return the search the token was created for, with the token's cursor if it has one, or null if it isn't a
+     *         valid token, which HAPI responds to with 410 Gone
+     */
+    @Override
+    public IBundleProvider retrieveResultList(String theId) {
+        String[] fields = readId(theId);
+        Search search = fields == null ? null : searches.get(fields[1]);
+        if (search == null) {
+            return null;
+        }
+        PagingCursor cursor;
+        try {
+            cursor = fields.length > 3 ? PagingCursor.decode(fields[3]) : null;
+        } catch (IllegalArgumentException e) {
+            logger.fine("Rejected page token with invalid cursor " + theId);
+            return null;
+        }
+
+        IBundleProvider result;
+        try {
+            result = search.search(new SearchParameters(context, SearchParameters.parseQueryString(fields[2])));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed searching for page of generation " + fields[0] + " search "
+                    + fields[1] + "?" + fields[2], e);
+            throw new RuntimeException("Failed searching for page of " + fields[1] + "?" + fields[2], e);
+        }
+        if (result instanceof SearchBundleProvider) {
+            SearchSession session = ((SearchBundleProvider) result).getSession();
+            if (cursor != null && !session.addCursor(cursor)) {
+                logger.fine("Page token's cursor is for index generation " + cursor.getGeneration()
+                        + ", serving its page by offset from generation " + session.getGeneration());
+            }
+            paged.set((SearchBundleProvider) result);
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the id of a page link of the search stored or retrieved by this thread with one that also holds the
+     * cursor for the page, if the search's session has one for the link's offset.
+     *
+     * @return the link with the cursor, or the link as it was if there is no cursor for it
+     */
+    public String addCursor(String link) {
+        SearchBundleProvider search = paged.get();
+        int queryStart = link.indexOf('?');
+        if (search == null || queryStart < 0) {
+            return link;
+        }
+        Map<String, String[]> parameters = SearchParameters.parseQueryString(link.substring(queryStart + 1));
+        String[] ids = parameters.get(Constants.PARAM_PAGINGACTION);
+        String[] offsets = parameters.get(Constants.PARAM_PAGINGOFFSET);
+        if (ids == null || offsets == null) {
+            return link;
+        }
+        PagingCursor cursor;
+        try {
+            cursor = search.getSession().getCursor(Integer.parseInt(offsets[0]));
+        } catch (NumberFormatException e) {
+            return link;
+        }
+        String[] fields = readId(ids[0]);
+        if (cursor == null || fields == null) {
+            return link;
+        }
+        String id = createId(cursor.getGeneration() + "\n" + fields[1] + "\n" + fields[2] + "\n" + cursor.encode());
+        return link.replace(Constants.PARAM_PAGINGACTION + "=" + ids[0], Constants.PARAM_PAGINGACTION + "=" + id);
+    }
+
+    /**
+     * Forgets the search stored or retrieved by this thread, once its response has been written.
+     */
+    public void clear() {
+        paged.remove();
+    }
+
+    private String createId(String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(bytes) + "." + encoder.encodeToString(sign(bytes));
+    }
+
+    /**
+     * @return the generation, resource type, query and optionally cursor the id holds, or null if it isn't a validly
+     *         signed id
+     */
+    private String[] readId(String id) {
+        String[] parts = id.split("\\.");
+        if (parts.length != 2) {
+            return null;
+        }
+        byte[] payload;
+        try {
+            payload = Base64.getUrlDecoder().decode(parts[0]);
+            if (!MessageDigest.isEqual(sign(payload), Base64.getUrlDecoder().decode(parts[1]))) {
+                logger.fine("Rejected page token with invalid signature " + id);
+                return null;
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        String[] fields = new String(payload, StandardCharsets.UTF_8).split("\n", 4);
+        return fields.length < 3 ? null : fields;
+    }
+
+    private byte[] sign(byte[] payload) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Failed signing page token", e);
+        }
+    }
+
+    /**
+     * @return the parameters sorted by name, with each parameter's values in the order they were given, as the order of
+     *         the <code>_sort</code> values is the order results are sorted in
+     */
+    private static String toQueryString(Map<String, String[]> parameters) {
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, String[]> parameter : new TreeMap<>(parameters).entrySet()) {
+            if (IGNORED_PARAMETERS.contains(parameter.getKey())) {
+                continue;
+            }
+            for (String value : parameter.getValue()) {
+                if (query.length() > 0) {
+                    query.append('&');
+                }
+                query.append(UrlUtil.escapeUrlParam(parameter.getKey()))
+                    .append('=')
+                    .append(UrlUtil.escapeUrlParam(value));
+            }
+        }
+        return query.toString();
+    }
+}
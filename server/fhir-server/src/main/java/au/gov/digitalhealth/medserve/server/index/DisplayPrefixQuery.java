@@ -0,0 +1,80 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+import au.gov.digitalhealth.medserve.server.indexbuilder.constants.CommitData;
+import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
+
+/**
+ * Matches resources with a word in their display text starting with a prefix. Against index generations built with
+ * the edge n-gram {@value FieldNames#DISPLAY_PREFIX} field, a prefix within the gram sizes recorded in the commit user
+ * data is rewritten to a lookup of the single term for it. Otherwise, or if <code>search.text.mode</code> is set to
+ * <code>prefix</code>, it is rewritten to a {@link PrefixQuery} over the display text terms as it was before the
+ * n-gram field was added.
+ * <p>
+ * Either way every match scores the same, so switching between them doesn't change the order of results.
+ */
+final class DisplayPrefixQuery extends Query {
+
+    static final boolean USE_EDGE_NGRAMS = !"prefix".equals(System.getProperty("search.text.mode", "ngram"));
+
+    private final String prefix;
+
+    DisplayPrefixQuery(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        if (USE_EDGE_NGRAMS) {
+            Map<String, String> commitData = getCommitData(reader);
+            String minGram = commitData.get(CommitData.DISPLAY_MIN_GRAM);
+            String maxGram = commitData.get(CommitData.DISPLAY_MAX_GRAM);
+            if (minGram != null && maxGram != null && prefix.length() >= Integer.parseInt(minGram)
+                    && prefix.length() <= Integer.parseInt(maxGram)) {
+                return new ConstantScoreQuery(new TermQuery(new Term(FieldNames.DISPLAY_PREFIX, prefix)));
+            }
+        }
+        return new PrefixQuery(new Term(FieldNames.DISPLAY, prefix));
+    }
+
+    /**
+     * @return the commit user data of the index, or of its first shard if it is sharded as every shard records the
+     *         same gram sizes
+     */
+    private static Map<String, String> getCommitData(IndexReader reader) throws IOException {
+        if (reader instanceof DirectoryReader) {
+            return ((DirectoryReader) reader).getIndexCommit().getUserData();
+        }
+        if (!reader.leaves().isEmpty() && reader.leaves().get(0).parent != null
+                && reader.leaves().get(0).parent.reader() instanceof DirectoryReader) {
+            return ((DirectoryReader) reader.leaves().get(0).parent.reader()).getIndexCommit().getUserData();
+        }
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String toString(String field) {
+        return FieldNames.DISPLAY + ":" + prefix + "*";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) && prefix.equals(((DisplayPrefixQuery) other).prefix);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * classHash() + prefix.hashCode();
+    }
+}
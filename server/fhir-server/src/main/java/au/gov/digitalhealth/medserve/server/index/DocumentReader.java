@@ -1,10 +1,15 @@
 package au.gov.digitalhealth.medserve.server.index;
 
-import org.apache.lucene.document.Document;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
-import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
 import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.parser.IParser;
 
@@ -16,14 +21,56 @@ public final class DocumentReader {
         throw new AssertionError("Static method helper class not to be constructed!");
     }
     
-    public static <T extends IBaseResource> T getResourceFromDocument(Document doc, Class<T> clazz) {
-        try {
-            return fhirParser
-                .parseResource(clazz,
-                    doc.getField(FieldNames.JSON).stringValue());
-        } catch (DataFormatException e) {
-            throw new RuntimeException("Failed reading document " + doc, e);
+    /**
+     * Gets the resource for a document from the cache, only loading and parsing the document's JSON if the resource
+     * isn't already cached for the generation. If {@link PassThrough} is enabled a placeholder that loads the stored
+     * JSON when it is written is returned instead and nothing is parsed.
+     */
+    public static <T extends IBaseResource> T getResource(IndexGeneration generation, int doc, Class<T> clazz,
+            ResourceCache cache) throws IOException {
+        return getResource(generation, doc, generation.getId(doc), clazz, cache);
+    }
+
+    public static <T extends IBaseResource> T getResource(IndexGeneration generation, int doc, String id,
+            Class<T> clazz, ResourceCache cache) throws IOException {
+        if (PassThrough.isEnabled()) {
+            return PassThrough.createPlaceholder(clazz, id, generation, doc);
+        }
+        T resource = cache.get(generation.getGeneration(), clazz, id);
+        if (resource == null) {
+            ByteBuffer json = generation.getJson(doc);
+            int length = json.remaining();
+            try {
+                resource = fhirParser.parseResource(clazz, StandardCharsets.UTF_8.decode(json).toString());
+            } catch (DataFormatException e) {
+                throw new RuntimeException("Failed reading document " + doc + " for id " + id, e);
+            }
+            cache.put(generation.getGeneration(), clazz, id, resource, length);
+        }
+        return resource;
+    }
+
+    /**
+     * Gets the resource for a document included in search results, marked with the include search mode. The mark is
+     * held by the resource itself, so the resource is always read afresh rather than shared through the cache with
+     * searches it is a match of.
+     */
+    public static <T extends IBaseResource> T getIncludedResource(IndexGeneration generation, int doc, String id,
+            Class<T> clazz) throws IOException {
+        T resource;
+        if (PassThrough.isEnabled()) {
+            resource = PassThrough.createPlaceholder(clazz, id, generation, doc);
+        } else {
+            try {
+                resource = fhirParser.parseResource(clazz,
+                    StandardCharsets.UTF_8.decode(generation.getJson(doc)).toString());
+            } catch (DataFormatException e) {
+                throw new RuntimeException("Failed reading document " + doc + " for id " + id, e);
+            }
         }
+        ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.put((IAnyResource) resource,
+            BundleEntrySearchModeEnum.INCLUDE.getCode());
+        return resource;
     }
 
 }
@@ -0,0 +1,38 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+/**
+ * The number of a search's results with a value of a facet field, the value being the token a search for it would
+ * use.
+ */
+public final class FacetCount {
+
+    private final String value;
+    private final String display;
+    private final int count;
+
+    public FacetCount(String value, String display, int count) {
+        this.value = value;
+        this.display = display;
+        this.count = count;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return the display of the value, or null if the value has none
+     */
+    public String getDisplay() {
+        return display;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "FacetCount [value=" + value + ", display=" + display + ", count=" + count + "]";
+    }
+}
@@ -0,0 +1,162 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SimpleCollector;
+
+import au.gov.digitalhealth.medserve.server.indexbuilder.IndexBuildingResourceProcessor;
+
+/**
+ * Counts the values of facet fields over all of a query's hits, reading them from the sorted set doc values the index
+ * builder writes for each of the {@link IndexBuildingResourceProcessor#FACET_FIELDS}. All of the fields are counted
+ * in a single pass over the hits, by ordinal within each segment, and only the ordinals that were hit are looked up
+ * once the segment is done.
+ * <p>
+ * Fields without doc values, as in generations built before facets were indexed, have no counts.
+ */
+final class FacetCounter {
+
+    private FacetCounter() {
+        throw new AssertionError("Static method helper class not to be constructed!");
+    }
+
+    /**
+     * @return the most frequent values of each field, most frequent first and at most the specified number of them
+     */
+    static Map<String, List<FacetCount>> count(IndexSearcher searcher, Query query, List<String> fields,
+            int maxValues) throws IOException {
+        Map<String, Map<String, Integer>> counts =
+                searcher.search(query, new CollectorManager<FacetCollector, Map<String, Map<String, Integer>>>() {
+                    @Override
+                    public FacetCollector newCollector() {
+                        return new FacetCollector(fields);
+                    }
+
+                    @Override
+                    public Map<String, Map<String, Integer>> reduce(Collection<FacetCollector> collectors)
+                            throws IOException {
+                        Map<String, Map<String, Integer>> result = new LinkedHashMap<>();
+                        for (String field : fields) {
+                            result.put(field, new HashMap<>());
+                        }
+                        for (FacetCollector collector : collectors) {
+                            collector.flush();
+                            for (Map.Entry<String, Map<String, Integer>> field : collector.counts.entrySet()) {
+                                Map<String, Integer> fieldCounts = result.get(field.getKey());
+                                field.getValue()
+                                    .forEach((value, count) -> fieldCounts.merge(value, count, Integer::sum));
+                            }
+                        }
+                        return result;
+                    }
+                });
+
+        Map<String, List<FacetCount>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Integer>> field : counts.entrySet()) {
+            List<FacetCount> values = new ArrayList<>(field.getValue().size());
+            for (Map.Entry<String, Integer> value : field.getValue().entrySet()) {
+                int separator = value.getKey().indexOf(IndexBuildingResourceProcessor.FACET_DISPLAY_SEPARATOR);
+                values.add(separator < 0 ? new FacetCount(value.getKey(), null, value.getValue())
+                        : new FacetCount(value.getKey().substring(0, separator),
+                            value.getKey().substring(separator + 1), value.getValue()));
+            }
+            values.sort(Comparator.comparingInt(FacetCount::getCount).reversed().thenComparing(FacetCount::getValue));
+            result.put(field.getKey(), values.size() > maxValues ? new ArrayList<>(values.subList(0, maxValues))
+                    : values);
+        }
+        return result;
+    }
+
+    /**
+     * @return the field's values as a sorted set, including single valued sorted doc values, or null if it has
+     *         neither
+     */
+    static SortedSetDocValues getSortedSet(LeafReader reader, String field) throws IOException {
+        SortedSetDocValues values = reader.getSortedSetDocValues(field);
+        if (values != null) {
+            return values;
+        }
+        SortedDocValues single = reader.getSortedDocValues(field);
+        return single == null ? null : DocValues.singleton(single);
+    }
+
+    /**
+     * Counts ordinals for the current segment, adding them to the counts by value when moving to the next.
+     */
+    private static final class FacetCollector extends SimpleCollector {
+
+        private final List<String> fields;
+        private final Map<String, Map<String, Integer>> counts = new HashMap<>();
+        private final SortedSetDocValues[] docValues;
+        private final int[][] ordinalCounts;
+
+        private FacetCollector(List<String> fields) {
+            this.fields = fields;
+            this.docValues = new SortedSetDocValues[fields.size()];
+            this.ordinalCounts = new int[fields.size()][];
+            for (String field : fields) {
+                counts.put(field, new HashMap<>());
+            }
+        }
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            flush();
+            LeafReader reader = context.reader();
+            for (int i = 0; i < fields.size(); i++) {
+                docValues[i] = getSortedSet(reader, fields.get(i));
+                ordinalCounts[i] = docValues[i] == null ? null : new int[(int) docValues[i].getValueCount()];
+            }
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            for (int i = 0; i < docValues.length; i++) {
+                SortedSetDocValues values = docValues[i];
+                if (values != null && values.advanceExact(doc)) {
+                    for (long ord = values.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = values.nextOrd()) {
+                        ordinalCounts[i][(int) ord]++;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean needsScores() {
+            return false;
+        }
+
+        private void flush() throws IOException {
+            for (int i = 0; i < docValues.length; i++) {
+                if (docValues[i] == null) {
+                    continue;
+                }
+                Map<String, Integer> fieldCounts = counts.get(fields.get(i));
+                int[] fieldOrdinalCounts = ordinalCounts[i];
+                for (int ord = 0; ord < fieldOrdinalCounts.length; ord++) {
+                    if (fieldOrdinalCounts[ord] > 0) {
+                        fieldCounts.merge(docValues[i].lookupOrd(ord).utf8ToString(), fieldOrdinalCounts[ord],
+                            Integer::sum);
+                    }
+                }
+                docValues[i] = null;
+                ordinalCounts[i] = null;
+            }
+        }
+    }
+}
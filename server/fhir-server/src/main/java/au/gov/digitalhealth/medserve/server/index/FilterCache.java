@@ -0,0 +1,123 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.search.LRUQueryCache;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryCachingPolicy;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.UsageTrackingQueryCachingPolicy;
+
+import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
+
+/**
+ * Cache of the matching documents of non scoring query clauses, shared by the searchers of all index generations. The
+ * term filters on the fields almost every search constrains, resource type, status, medication resource type and is
+ * brand, are always cached. Lucene's usual usage tracking policy decides for any other filter, which otherwise never
+ * caches term queries.
+ * <p>
+ * Hits and misses are counted for each of the always cached fields so their effectiveness can be monitored. Entries
+ * for a generation are evicted when its segments are closed.
+ */
+public class FilterCache extends LRUQueryCache {
+
+    public static final int MAX_QUERIES = Integer.getInteger("filter.cache.maxQueries", 256);
+    public static final long MAX_BYTES = Long.getLong("filter.cache.maxBytes", 32L * 1024 * 1024);
+
+    private static final String[] COMMON_FILTER_FIELDS = { FieldNames.RESOURCE_TYPE, FieldNames.STATUS,
+            FieldNames.MEDICATION_RESOURCE_TYPE, FieldNames.IS_BRAND };
+
+    private final Map<String, LongAdder> hits;
+    private final Map<String, LongAdder> misses;
+
+    private final QueryCachingPolicy policy = new QueryCachingPolicy() {
+        private final UsageTrackingQueryCachingPolicy usageTracking = new UsageTrackingQueryCachingPolicy();
+
+        @Override
+        public void onUse(Query query) {
+            usageTracking.onUse(query);
+        }
+
+        @Override
+        public boolean shouldCache(Query query) throws IOException {
+            return getCommonFilterField(query) != null || usageTracking.shouldCache(query);
+        }
+    };
+
+    public FilterCache() {
+        this(MAX_QUERIES, MAX_BYTES);
+    }
+
+    public FilterCache(int maxQueries, long maxBytes) {
+        // The index is small enough that every segment is worth caching filters for
+        super(maxQueries, maxBytes, leaf -> true);
+        hits = createCounters();
+        misses = createCounters();
+    }
+
+    public QueryCachingPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getHitCount(String field) {
+        return hits.get(field).sum();
+    }
+
+    public long getMissCount(String field) {
+        return misses.get(field).sum();
+    }
+
+    @Override
+    protected void onHit(Object readerCoreKey, Query query) {
+        super.onHit(readerCoreKey, query);
+        count(hits, query);
+    }
+
+    @Override
+    protected void onMiss(Object readerCoreKey, Query query) {
+        super.onMiss(readerCoreKey, query);
+        count(misses, query);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder fields = new StringBuilder();
+        for (String field : COMMON_FILTER_FIELDS) {
+            fields.append(", ").append(field).append("=").append(getHitCount(field)).append("/").append(
+                getHitCount(field) + getMissCount(field));
+        }
+        return "FilterCache [queries=" + getCacheCount() + ", docIdSets=" + getCacheSize() + ", bytes="
+                + ramBytesUsed() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions="
+                + getEvictionCount() + fields + "]";
+    }
+
+    private static Map<String, LongAdder> createCounters() {
+        Map<String, LongAdder> counters = new LinkedHashMap<>();
+        Arrays.stream(COMMON_FILTER_FIELDS).forEach(field -> counters.put(field, new LongAdder()));
+        return Collections.unmodifiableMap(counters);
+    }
+
+    private static void count(Map<String, LongAdder> counters, Query query) {
+        String field = getCommonFilterField(query);
+        if (field != null) {
+            counters.get(field).increment();
+        }
+    }
+
+    private static String getCommonFilterField(Query query) {
+        if (query instanceof TermQuery) {
+            String field = ((TermQuery) query).getTerm().field();
+            for (String common : COMMON_FILTER_FIELDS) {
+                if (common.equals(field)) {
+                    return common;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,116 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.BytesRef;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import au.gov.digitalhealth.medserve.server.indexbuilder.IndexBuildingResourceProcessor;
+
+/**
+ * Resolves the resources to include with a page of search results, looking them up for the page as a whole rather
+ * than per result, and including each resource at most once.
+ * <p>
+ * Referenced ids are read from the doc values the index builder writes for its
+ * {@link IndexBuildingResourceProcessor#INCLUDE_FIELDS}, visiting the page's documents in doc id order, and the
+ * distinct ids are then looked up in the generation's id map. Resources referencing the page are found with a single
+ * search for all of the page's ids, returning at most {@link #MAX_REV_INCLUDES} of them per _revinclude.
+ */
+final class IncludeResolver {
+
+    static final int MAX_REV_INCLUDES = Integer.getInteger("search.revinclude.max", 1000);
+
+    private IncludeResolver() {
+        throw new AssertionError("Static method helper class not to be constructed!");
+    }
+
+    /**
+     * @param docs the page's results, numbered within the partition
+     * @return the included resources, excluding any that are results in the page
+     */
+    static List<IBaseResource> resolve(IndexGeneration generation, IndexPartition partition,
+            Class<? extends IBaseResource> clazz, List<ScoreDoc> docs, List<Inclusion> inclusions)
+            throws IOException {
+        int[] pageDocs = new int[docs.size()];
+        for (int i = 0; i < pageDocs.length; i++) {
+            pageDocs[i] = docs.get(i).doc;
+        }
+        Arrays.sort(pageDocs);
+
+        Set<String> included = new HashSet<>();
+        List<BytesRef> pageIds = new ArrayList<>(pageDocs.length);
+        for (int doc : pageDocs) {
+            String id = generation.getId(partition.getDocBase() + doc);
+            included.add(getResourceType(clazz) + "/" + id);
+            pageIds.add(new BytesRef(id));
+        }
+
+        List<IBaseResource> result = new ArrayList<>();
+        for (Inclusion inclusion : inclusions) {
+            String resourceType = getResourceType(inclusion.getResourceClass());
+            if (inclusion.isReverse()) {
+                IndexPartition referencing = generation.getPartition(resourceType);
+                TopDocs referencingDocs = referencing.getSearcher()
+                    .search(new TermInSetQuery(inclusion.getField(), pageIds), MAX_REV_INCLUDES);
+                for (ScoreDoc referencingDoc : referencingDocs.scoreDocs) {
+                    int doc = referencing.getDocBase() + referencingDoc.doc;
+                    String id = generation.getId(doc);
+                    if (included.add(resourceType + "/" + id)) {
+                        result.add(DocumentReader.getIncludedResource(generation, doc, id,
+                            inclusion.getResourceClass()));
+                    }
+                }
+            } else {
+                for (String id : getReferencedIds(partition, pageDocs, inclusion.getField())) {
+                    int doc = generation.getDoc(resourceType, id);
+                    if (doc >= 0 && included.add(resourceType + "/" + id)) {
+                        result.add(DocumentReader.getIncludedResource(generation, doc, id,
+                            inclusion.getResourceClass()));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the distinct ids the field of the documents reference, the documents being in ascending order
+     */
+    private static Set<String> getReferencedIds(IndexPartition partition, int[] docs, String field)
+            throws IOException {
+        Set<String> ids = new LinkedHashSet<>();
+        List<LeafReaderContext> leaves = partition.getReader().leaves();
+        int leaf = -1;
+        LeafReaderContext context = null;
+        SortedSetDocValues values = null;
+        for (int doc : docs) {
+            while (context == null || doc >= context.docBase + context.reader().maxDoc()) {
+                context = leaves.get(++leaf);
+                values = FacetCounter.getSortedSet(context.reader(), field);
+            }
+            if (values != null && values.advanceExact(doc - context.docBase)) {
+                for (long ord = values.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = values.nextOrd()) {
+                    String value = values.lookupOrd(ord).utf8ToString();
+                    int separator = value.indexOf(IndexBuildingResourceProcessor.FACET_DISPLAY_SEPARATOR);
+                    ids.add(separator < 0 ? value : value.substring(0, separator));
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static String getResourceType(Class<? extends IBaseResource> clazz) {
+        return clazz.getSimpleName().replace("Extended", "").toLowerCase();
+    }
+}
@@ -0,0 +1,54 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Resources to include alongside each page of a search's results, either those referenced by a field of the results,
+ * an _include, or those whose field references one of the results, a _revinclude.
+ */
+public final class Inclusion {
+
+    private final String field;
+    private final Class<? extends IBaseResource> clazz;
+    private final boolean reverse;
+
+    private Inclusion(String field, Class<? extends IBaseResource> clazz, boolean reverse) {
+        this.field = field;
+        this.clazz = clazz;
+        this.reverse = reverse;
+    }
+
+    /**
+     * Includes the resources of the specified type referenced by the field of the results.
+     */
+    public static Inclusion include(String field, Class<? extends IBaseResource> referencedClass) {
+        return new Inclusion(field, referencedClass, false);
+    }
+
+    /**
+     * Includes the resources of the specified type whose field references one of the results.
+     */
+    public static Inclusion revInclude(String field, Class<? extends IBaseResource> referencingClass) {
+        return new Inclusion(field, referencingClass, true);
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * @return the class of the included resources
+     */
+    public Class<? extends IBaseResource> getResourceClass() {
+        return clazz;
+    }
+
+    public boolean isReverse() {
+        return reverse;
+    }
+
+    @Override
+    public String toString() {
+        return "Inclusion [field=" + field + ", class=" + clazz.getSimpleName() + ", reverse=" + reverse + "]";
+    }
+}
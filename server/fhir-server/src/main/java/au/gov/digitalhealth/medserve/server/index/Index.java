@@ -1,66 +1,234 @@
 package au.gov.digitalhealth.medserve.server.index;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.BooleanQuery.Builder;
-import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager.RefreshListener;
 import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.search.TermRangeQuery;
 import org.hl7.fhir.dstu3.model.BaseResource;
-import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IAnyResource;
 
 import au.gov.digitalhealth.medserve.extension.ExtendedMedication;
 import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
 import au.gov.digitalhealth.medserve.server.indexbuilder.constants.ResourceTypes;
+import au.gov.digitalhealth.medserve.server.indexbuilder.suggest.MedicationSuggester;
+import au.gov.digitalhealth.medserve.server.indexbuilder.suggest.Suggestion;
+import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.param.DateAndListParam;
 import ca.uhn.fhir.rest.param.NumberAndListParam;
 import ca.uhn.fhir.rest.param.StringAndListParam;
 import ca.uhn.fhir.rest.param.StringOrListParam;
 import ca.uhn.fhir.rest.param.TokenAndListParam;
 import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
 
-public class Index {
+public class Index implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(Index.class.getCanonicalName());
 
     public static final String INDEX_LOCATION = System.getProperty("index.path", "/index");
-    private IndexReader reader;
-    private IndexSearcher searcher;
+    public static final long INDEX_REFRESH_SECONDS = Long.getLong("index.refresh.seconds", 60);
+
+    private IndexGenerationManager generations;
+    private ScheduledExecutorService refresher;
+    private ResourceCache resourceCache = new ResourceCache();
+    private FilterCache filterCache = new FilterCache();
+    private QueryPlanCache queryPlanCache = new QueryPlanCache();
+    private SearchExecutor searchExecutor = new SearchExecutor();
+    private SearchCoalescer searchCoalescer = new SearchCoalescer();
 
     public Index() throws IOException {
-        this.reader = DirectoryReader.open(new MMapDirectory(Paths.get(INDEX_LOCATION)));
-        this.searcher = new IndexSearcher(reader);
+        this.generations = new IndexGenerationManager(Paths.get(INDEX_LOCATION), filterCache, searchExecutor);
+        this.generations.addListener(new RefreshListener() {
+            @Override
+            public void beforeRefresh() throws IOException {
+                // nothing to do until the new generation is swapped in
+            }
+
+            @Override
+            public void afterRefresh(boolean didRefresh) throws IOException {
+                if (didRefresh) {
+                    logger.info("Invalidating resources cached before generation swap " + resourceCache + " "
+                            + queryPlanCache + " " + filterCache + " " + searchExecutor + " " + searchCoalescer);
+                    long generation = getGeneration();
+                    resourceCache.invalidateBefore(generation);
+                    queryPlanCache.invalidateBefore(generation);
+                }
+            }
+        });
+        if (INDEX_REFRESH_SECONDS > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "index-generation-refresher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refresher.scheduleWithFixedDelay(this::refresh, INDEX_REFRESH_SECONDS, INDEX_REFRESH_SECONDS,
+                TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Checks for a newly published index generation and, if there is one, opens, warms and swaps it in. Searches
+     * already running against the previous generation complete against it before it is closed.
+     */
+    public void refresh() {
+        try {
+            generations.maybeRefresh();
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Failed refreshing index generation from " + INDEX_LOCATION, e);
+        }
+    }
+
+    public long getGeneration() throws IOException {
+        IndexGeneration generation = generations.acquire();
+        try {
+            return generation.getGeneration();
+        } finally {
+            generations.release(generation);
+        }
+    }
+
+    /**
+     * @return the generation currently searched, which must be released with {@link #release(IndexGeneration)} once
+     *         it is no longer used
+     */
+    public IndexGeneration acquire() throws IOException {
+        return generations.acquire();
+    }
+
+    public void release(IndexGeneration generation) throws IOException {
+        generations.release(generation);
+    }
+
+    public ResourceCache getResourceCache() {
+        return resourceCache;
+    }
+
+    public QueryPlanCache getQueryPlanCache() {
+        return queryPlanCache;
+    }
+
+    public FilterCache getFilterCache() {
+        return filterCache;
+    }
+
+    public SearchExecutor getSearchExecutor() {
+        return searchExecutor;
+    }
+
+    public SearchCoalescer getSearchCoalescer() {
+        return searchCoalescer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+        generations.close();
+        searchExecutor.close();
     }
 
     public <T extends BaseResource> T getResourceById(Class<T> clazz, String id) throws IOException {
         String resourceType = clazz.getSimpleName().replace("Extended", "").toLowerCase();
-        Builder builder = new BooleanQuery.Builder()
-            .add(new TermQuery(new Term(FieldNames.RESOURCE_TYPE, resourceType)), Occur.FILTER)
-            .add(new TermQuery(new Term(FieldNames.ID, id)), Occur.FILTER);
+        IndexGeneration generation = generations.acquire();
+        try {
+            if (!PassThrough.isEnabled()) {
+                T cached = resourceCache.get(generation.getGeneration(), clazz, id);
+                if (cached != null) {
+                    return cached;
+                }
+            }
 
-        return getSingleResource(clazz, builder.build(), id);
+            int doc = generation.getDoc(resourceType, id);
+            if (doc < 0) {
+                return null;
+            }
+            return DocumentReader.getResource(generation, doc, id, clazz, resourceCache);
+        } finally {
+            generations.release(generation);
+        }
     }
 
-    public int getResourcesByCodeSize(Class<? extends BaseResource> clazz, TokenParam code) throws IOException {
-        Query query = getResourcesByCodeQuery(clazz, code);
-        return searcher.count(query);
+    /**
+     * Suggests active Medications for typed text from the generation's suggester, without loading any resources.
+     */
+    public List<Suggestion> suggestMedications(String text, Set<String> medicationResourceTypes, int limit)
+            throws IOException {
+        IndexGeneration generation = generations.acquire();
+        try {
+            if (generation.getSuggester() == null) {
+                throw new NotImplementedOperationException(
+                    "Index generation " + generation.getGeneration() + " was built without Medication suggestions");
+            }
+            return MedicationSuggester.lookup(generation.getSuggester(), text, medicationResourceTypes, limit);
+        } finally {
+            generations.release(generation);
+        }
     }
 
-    public List<IBaseResource> getResourcesByCode(Class<? extends BaseResource> clazz, TokenParam code,
-            int theFromIndex,
-            int theToIndex) {
-
-        Query query = getResourcesByCodeQuery(clazz, code);
+    /**
+     * Goes through the JSON of every resource of each of the resource types, in the order given and within each type in
+     * doc order, all from the same generation. Resources of every status are included, if a date is specified only
+     * those last modified on or after it, along with those that have no last modified date, as they can't be shown to
+     * be unchanged.
+     *
+     * @param resourceTypes lower case resource type names
+     * @param since ISO 8601 date, or null for all resources
+     * @return the number of resources passed to the consumer
+     */
+    public long export(List<String> resourceTypes, String since, IndexGeneration.JsonConsumer consumer)
+            throws IOException {
+        IndexGeneration generation = generations.acquire();
+        try {
+            long count = 0;
+            for (String resourceType : resourceTypes) {
+                Builder builder = new BooleanQuery.Builder()
+                    .add(new TermQuery(new Term(FieldNames.RESOURCE_TYPE, resourceType)), Occur.FILTER);
+                if (since != null) {
+                    Query undated = new BooleanQuery.Builder()
+                        .add(new MatchAllDocsQuery(), Occur.FILTER)
+                        .add(TermRangeQuery.newStringRange(FieldNames.LAST_MODIFIED, null, null, true, true),
+                            Occur.MUST_NOT)
+                        .build();
+                    builder.add(new BooleanQuery.Builder()
+                        .add(TermRangeQuery.newStringRange(FieldNames.LAST_MODIFIED, since, null, true, true),
+                            Occur.SHOULD)
+                        .add(undated, Occur.SHOULD)
+                        .build(), Occur.FILTER);
+                }
+                count += generation.forEachJson(generation.getPartition(resourceType), builder.build(), consumer);
+            }
+            return count;
+        } finally {
+            generations.release(generation);
+        }
+    }
 
-        return getResources(clazz, theFromIndex, theToIndex, query);
+    public SearchSession searchByCode(Class<? extends BaseResource> clazz, TokenParam code) throws IOException {
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        parameters.put(ExtendedMedication.SP_CODE, code);
+        Query query = queryPlanCache.get(getGeneration(),
+            QueryPlanCache.canonicalise("code:" + clazz.getName(), parameters),
+            () -> getResourcesByCodeQuery(clazz, code));
+        return new SearchSession(generations, resourceCache, searchCoalescer, clazz, query, null);
     }
 
     private BooleanQuery getResourcesByCodeQuery(Class<? extends BaseResource> clazz, TokenParam code) {
@@ -68,61 +236,68 @@ public class Index {
         Builder builder = new BooleanQuery.Builder()
             .add(new TermQuery(new Term(FieldNames.RESOURCE_TYPE, resourceType)), Occur.FILTER);
 
-        QueryBuilder.searchCodableConcept(code, builder, FieldNames.CODE, Occur.MUST);
+        QueryBuilder.searchCodableConcept(code, builder, FieldNames.CODE, Occur.FILTER);
 
         return builder.build();
     }
 
-    public int getResourcesByTextSize(Class<? extends BaseResource> clazz, TokenAndListParam code,
-            StringAndListParam text, StringOrListParam status, DateAndListParam lastModified) throws IOException {
-        return searcher.count(QueryBuilder.createTextSearchBuilder(clazz, code, text, status, lastModified).build());
-    }
-
-    public List<IBaseResource> getResourcesByText(Class<? extends BaseResource> clazz, TokenAndListParam code,
-            StringAndListParam text,
-            StringOrListParam status, DateAndListParam lastModified, int theFromIndex, int theToIndex) {
-        return getResources(clazz, theFromIndex, theToIndex,
-            QueryBuilder.createTextSearchBuilder(clazz, code, text, status, lastModified).build());
+    public SearchSession searchByText(Class<? extends BaseResource> clazz, TokenAndListParam id,
+            TokenAndListParam code, StringAndListParam text, StringOrListParam status, DateAndListParam lastModified,
+            SortSpec sort) throws IOException {
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        parameters.put(IAnyResource.SP_RES_ID, id);
+        parameters.put(ExtendedMedication.SP_CODE, code);
+        parameters.put("_text", text);
+        parameters.put(ExtendedMedication.SP_STATUS, status);
+        parameters.put(FieldNames.LAST_MODIFIED, lastModified);
+        Query query = queryPlanCache.get(getGeneration(), QueryPlanCache.canonicalise(clazz.getName(), parameters),
+            () -> QueryBuilder.createTextSearchBuilder(clazz, id, code, text, status, lastModified).build());
+        return new SearchSession(generations, resourceCache, searchCoalescer, clazz, query,
+            QueryBuilder.createSort(sort));
     }
 
-    public int getMedicationsByParametersSize(Class<ExtendedMedication> clazz, TokenAndListParam code,
-            StringAndListParam text,
+    public SearchSession searchMedicationsByParameters(Class<ExtendedMedication> clazz, TokenAndListParam id,
+            TokenAndListParam code, StringAndListParam text,
             TokenAndListParam parent, TokenAndListParam ancestor, StringOrListParam medicationResourceType,
             TokenAndListParam form, TokenAndListParam container, TokenAndListParam ingredient,
             TokenAndListParam packageItem, TokenAndListParam brand, String isBrand, TokenAndListParam manufacturer,
             TokenAndListParam subsidyCode, StringOrListParam status, DateAndListParam lastModified,
-            NumberAndListParam ingredientCount)
+            NumberAndListParam ingredientCount, SortSpec sort)
             throws IOException {
-        Query query = getMedicationsByParametersQuery(clazz, code, text, parent, ancestor, medicationResourceType, form,
-            container, ingredient, packageItem, brand, isBrand, manufacturer, subsidyCode, status, lastModified,
-            ingredientCount);
-        return searcher.count(query);
-    }
-
-    public List<IBaseResource> getMedicationsByParameters(Class<ExtendedMedication> clazz, TokenAndListParam code,
-            StringAndListParam text,
-            TokenAndListParam parent, TokenAndListParam ancestor, StringOrListParam medicationResourceType,
-            TokenAndListParam form, TokenAndListParam container, TokenAndListParam ingredient,
-            TokenAndListParam packageItem, TokenAndListParam brand, String isBrand, TokenAndListParam manufacturer,
-            TokenAndListParam subsidyCode, StringOrListParam status, DateAndListParam lastModified,
-            NumberAndListParam ingredientCount, int theFromIndex,
-            int theToIndex) {
-
-        Query query = getMedicationsByParametersQuery(clazz, code, text, parent, ancestor, medicationResourceType, form,
-            container, ingredient, packageItem, brand, isBrand, manufacturer, subsidyCode, status, lastModified,
-            ingredientCount);
-
-        return getResources(clazz, theFromIndex, theToIndex, query);
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        parameters.put(IAnyResource.SP_RES_ID, id);
+        parameters.put(ExtendedMedication.SP_CODE, code);
+        parameters.put("_text", text);
+        parameters.put(FieldNames.PARENT, parent);
+        parameters.put(FieldNames.ANCESTOR, ancestor);
+        parameters.put(FieldNames.MEDICATION_RESOURCE_TYPE, medicationResourceType);
+        parameters.put(ExtendedMedication.SP_FORM, form);
+        parameters.put(ExtendedMedication.SP_CONTAINER, container);
+        parameters.put(ExtendedMedication.SP_INGREDIENT, ingredient);
+        parameters.put(ExtendedMedication.SP_PACKAGE_ITEM, packageItem);
+        parameters.put(FieldNames.BRAND, brand);
+        parameters.put(FieldNames.IS_BRAND, isBrand);
+        parameters.put(FieldNames.MANUFACTURER, manufacturer);
+        parameters.put(FieldNames.SUBSIDY_CODE, subsidyCode);
+        parameters.put(ExtendedMedication.SP_STATUS, status);
+        parameters.put(FieldNames.LAST_MODIFIED, lastModified);
+        parameters.put(FieldNames.INGREDIENT_COUNT, ingredientCount);
+        Query query = queryPlanCache.get(getGeneration(), QueryPlanCache.canonicalise(clazz.getName(), parameters),
+            () -> getMedicationsByParametersQuery(clazz, id, code, text, parent, ancestor, medicationResourceType, form,
+                container, ingredient, packageItem, brand, isBrand, manufacturer, subsidyCode, status, lastModified,
+                ingredientCount));
+        return new SearchSession(generations, resourceCache, searchCoalescer, clazz, query,
+            QueryBuilder.createSort(sort));
     }
 
-    private BooleanQuery getMedicationsByParametersQuery(Class<ExtendedMedication> clazz, TokenAndListParam code,
-            StringAndListParam text, TokenAndListParam parent, TokenAndListParam ancestor,
+    private BooleanQuery getMedicationsByParametersQuery(Class<ExtendedMedication> clazz, TokenAndListParam id,
+            TokenAndListParam code, StringAndListParam text, TokenAndListParam parent, TokenAndListParam ancestor,
             StringOrListParam medicationResourceType, TokenAndListParam form, TokenAndListParam container,
             TokenAndListParam ingredient, TokenAndListParam packageItem, TokenAndListParam brand, String isBrand,
             TokenAndListParam manufacturer, TokenAndListParam subsidyCode, StringOrListParam status,
             DateAndListParam lastModified, NumberAndListParam ingredientCount) {
 
-        Builder builder = QueryBuilder.createTextSearchBuilder(clazz, code, text, status, lastModified);
+        Builder builder = QueryBuilder.createTextSearchBuilder(clazz, id, code, text, status, lastModified);
 
         QueryBuilder.addOptionalNumberAndList(ingredientCount, builder, FieldNames.INGREDIENT_COUNT);
 
@@ -153,45 +328,9 @@ public class Index {
 
         if (isBrand != null) {
             builder.add(new TermQuery(new Term(FieldNames.IS_BRAND, "" + Boolean.parseBoolean(isBrand))),
-                Occur.MUST);
+                Occur.FILTER);
         }
 
         return builder.build();
     }
-
-    private List<IBaseResource> getResources(Class<? extends IBaseResource> clazz, int theFromIndex, int theToIndex,
-            Query query) {
-        List<IBaseResource> result = new ArrayList<>();
-        TopDocs docs;
-        try {
-            docs = searcher.search(query, theToIndex);
-
-            for (int i = theFromIndex; i < theToIndex; i++) {
-
-                result.add(DocumentReader.getResourceFromDocument(reader.document(docs.scoreDocs[i].doc), clazz));
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Failed searching index with query '" + query + "'", e);
-        }
-
-        return result;
-    }
-
-    private <T extends BaseResource> T getSingleResource(Class<T> clazz, Query query, String id) throws IOException {
-        TopDocs docs;
-        try {
-            docs = searcher.search(query, 2);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed searching index with query '" + query + "'", e);
-        }
-
-        if (docs.totalHits > 1) {
-            throw new RuntimeException("More than one " + clazz.getSimpleName() + " resource found for id " + id);
-        }
-
-        if (docs.totalHits == 0) {
-            return null;
-        }
-        return DocumentReader.getResourceFromDocument(reader.document(docs.scoreDocs[0].doc), clazz);
-    }
 }
@@ -0,0 +1,444 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.suggest.analyzing.AnalyzingInfixSuggester;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.IOUtils;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.dstu3.model.Meta;
+
+import au.gov.digitalhealth.medserve.server.indexbuilder.constants.CommitData;
+import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
+import au.gov.digitalhealth.medserve.server.indexbuilder.constants.IndexFiles;
+import au.gov.digitalhealth.medserve.server.indexbuilder.suggest.MedicationSuggester;
+import au.gov.digitalhealth.medserve.transform.util.LoggingTimer;
+
+/**
+ * A single published, immutable version of the index along with the readers and searchers opened over it. Instances
+ * are reference counted through the underlying {@link IndexReader} and are handed out by
+ * {@link IndexGenerationManager}, the directories are closed when the last reference is released.
+ * <p>
+ * Each resource type is searched in its own {@link IndexPartition}, see {@link IndexFiles#PARTITIONS}. The generation's
+ * reader combines the partitions so every document in the generation has its own doc id, which is what resources are
+ * read and cached by. Generations built before the index was partitioned are a single partition searched for every
+ * resource type. The shards of a sharded partition are opened together as the partition's reader, so its searcher
+ * searches them all and merges their results.
+ * <p>
+ * Resource JSON is read from the generation's memory mapped {@link ResourceBlobStore} if it has one, generations built
+ * before the blob file was introduced still keep it in stored fields. The generation's Medication suggester, if it was
+ * built with one, is opened and closed along with it.
+ */
+public final class IndexGeneration {
+
+    private static final Logger logger = Logger.getLogger(IndexGeneration.class.getCanonicalName());
+
+    private static final int WARMING_DOCUMENT_COUNT = 100;
+
+    private static final Set<String> JSON_FIELD = Collections.singleton(FieldNames.JSON);
+
+    private final long generation;
+    private final long lastModified;
+    private final Path path;
+    private final IndexReader reader;
+    private final Map<String, IndexPartition> partitions;
+    private final ResourceBlobStore blobStore;
+    private final ResourceIdMap resourceIds;
+    private final AnalyzingInfixSuggester suggester;
+
+    private IndexGeneration(long generation, long lastModified, Path path, IndexReader reader,
+            Map<String, IndexPartition> partitions, ResourceBlobStore blobStore, ResourceIdMap resourceIds,
+            AnalyzingInfixSuggester suggester) {
+        this.generation = generation;
+        this.lastModified = lastModified;
+        this.path = path;
+        this.reader = reader;
+        this.partitions = partitions;
+        this.blobStore = blobStore;
+        this.resourceIds = resourceIds;
+        this.suggester = suggester;
+    }
+
+    static IndexGeneration open(long generation, Path path, FilterCache filterCache, SearchExecutor searchExecutor)
+            throws IOException {
+        boolean partitioned = isPartitioned(path);
+        List<String> names = partitioned ? IndexFiles.PARTITIONS : Collections.singletonList("");
+        IndexReader[] partitionReaders = new IndexReader[names.size()];
+        int[] shardCounts = new int[names.size()];
+        List<DirectoryReader> opened = new ArrayList<>();
+        try {
+            for (int i = 0; i < names.size(); i++) {
+                Path partitionPath = path.resolve(names.get(i));
+                if (IndexGenerationManager.containsIndex(partitionPath)) {
+                    DirectoryReader partitionReader = openReader(partitionPath);
+                    opened.add(partitionReader);
+                    partitionReaders[i] = partitionReader;
+                    shardCounts[i] = 1;
+                } else {
+                    DirectoryReader[] shards = openShards(partitionPath);
+                    opened.addAll(Arrays.asList(shards));
+                    partitionReaders[i] = new MultiReader(shards, true);
+                    shardCounts[i] = shards.length;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeWhileHandlingException(opened);
+            throw e;
+        }
+        IndexReader reader = partitioned ? new MultiReader(partitionReaders, true) : partitionReaders[0];
+
+        Map<String, IndexPartition> partitions = new HashMap<>();
+        long lastModified;
+        ResourceBlobStore blobStore;
+        ResourceIdMap resourceIds;
+        AnalyzingInfixSuggester suggester = null;
+        try {
+            int docBase = 0;
+            for (int i = 0; i < names.size(); i++) {
+                IndexSearcher searcher = searchExecutor.newSearcher(partitionReaders[i]);
+                searcher.setQueryCache(filterCache);
+                searcher.setQueryCachingPolicy(filterCache.getPolicy());
+                IndexPartition partition =
+                        new IndexPartition(names.get(i), partitionReaders[i], searcher, docBase, shardCounts[i]);
+                docBase += partitionReaders[i].maxDoc();
+                if (partitioned) {
+                    partitions.put(partition.getName(), partition);
+                } else {
+                    IndexFiles.PARTITIONS.forEach(name -> partitions.put(name, partition));
+                }
+            }
+
+            lastModified = getLastModified(opened);
+            blobStore = ResourceBlobStore.open(path);
+            resourceIds = ResourceIdMap.build(reader);
+            Path suggestPath = path.resolve(IndexFiles.SUGGEST_DIRECTORY);
+            if (Files.isDirectory(suggestPath) && IndexGenerationManager.containsIndex(suggestPath)) {
+                AnalyzingInfixSuggester suggestOpened = MedicationSuggester.open(suggestPath);
+                opened.get(0).getReaderCacheHelper().addClosedListener(key -> suggestOpened.close());
+                suggester = suggestOpened;
+            }
+        } catch (IOException | RuntimeException e) {
+            reader.decRef();
+            throw e;
+        }
+        if (!partitioned) {
+            logger.info("No partitions in " + path + ", searching a single index for all resource types");
+        }
+        if (blobStore == null) {
+            logger.info("No resource blob file in " + path + ", reading resource JSON from stored fields");
+        }
+        if (suggester == null) {
+            logger.info("No suggester in " + path + ", Medication suggestions are not available");
+        }
+        return new IndexGeneration(generation, lastModified, path, reader, partitions, blobStore, resourceIds,
+            suggester);
+    }
+
+    /**
+     * @return when the generation was committed, as recorded in its commit user data, or for a generation built before
+     *         that was recorded when its newest commit point was written
+     */
+    private static long getLastModified(List<DirectoryReader> readers) throws IOException {
+        long lastModified = 0;
+        for (DirectoryReader reader : readers) {
+            IndexCommit commit = reader.getIndexCommit();
+            String committed = commit.getUserData().get(CommitData.COMMITTED);
+            if (committed != null) {
+                lastModified = Math.max(lastModified, Long.parseLong(committed));
+            } else {
+                Path segments = ((FSDirectory) commit.getDirectory()).getDirectory()
+                    .resolve(commit.getSegmentsFileName());
+                lastModified = Math.max(lastModified, Files.getLastModifiedTime(segments).toMillis());
+            }
+        }
+        return lastModified;
+    }
+
+    /**
+     * @return true if the directory holds a generation of the index, either partitioned or built before the index was
+     *         partitioned
+     */
+    static boolean isIndexGeneration(Path path) throws IOException {
+        return isPartitioned(path) || IndexGenerationManager.containsIndex(path);
+    }
+
+    private static boolean isPartitioned(Path path) throws IOException {
+        for (String partition : IndexFiles.PARTITIONS) {
+            Path partitionPath = path.resolve(partition);
+            if (!Files.isDirectory(partitionPath) || !(IndexGenerationManager.containsIndex(partitionPath)
+                    || IndexGenerationManager.containsIndex(partitionPath.resolve("0")))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Opens the shards of a sharded partition, checking every shard the partition was split into is there.
+     */
+    private static DirectoryReader[] openShards(Path partitionPath) throws IOException {
+        List<DirectoryReader> shards = new ArrayList<>();
+        try {
+            int shardCount = 1;
+            for (int shard = 0; shard < shardCount; shard++) {
+                Path shardPath = partitionPath.resolve(Integer.toString(shard));
+                if (!Files.isDirectory(shardPath) || !IndexGenerationManager.containsIndex(shardPath)) {
+                    throw new IOException("Missing shard " + shard + " of " + shardCount + " in " + partitionPath);
+                }
+                DirectoryReader reader = openReader(shardPath);
+                shards.add(reader);
+                Map<String, String> commitData = reader.getIndexCommit().getUserData();
+                if (!Integer.toString(shard).equals(commitData.get(CommitData.SHARD))) {
+                    throw new IOException("Index in " + shardPath + " is shard " + commitData.get(CommitData.SHARD));
+                }
+                shardCount = Integer.parseInt(commitData.get(CommitData.SHARD_COUNT));
+            }
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeWhileHandlingException(shards);
+            throw e;
+        }
+        return shards.toArray(new DirectoryReader[shards.size()]);
+    }
+
+    private static DirectoryReader openReader(Path path) throws IOException {
+        Directory directory = new MMapDirectory(path);
+        DirectoryReader reader;
+        try {
+            reader = DirectoryReader.open(directory);
+        } catch (IOException e) {
+            directory.close();
+            throw e;
+        }
+        reader.getReaderCacheHelper().addClosedListener(key -> directory.close());
+        return reader;
+    }
+
+    /**
+     * Touches the term dictionaries, postings and doc values most requests rely on in each partition so the first
+     * queries against a newly published generation don't pay for page faults and lazy initialisation. A generation
+     * built before the index was partitioned has one partition for every resource type, which is only warmed once.
+     */
+    void warm() throws IOException {
+        Map<IndexPartition, List<String>> resourceTypes = new IdentityHashMap<>();
+        for (Entry<String, IndexPartition> entry : partitions.entrySet()) {
+            resourceTypes.computeIfAbsent(entry.getValue(), partition -> new ArrayList<>()).add(entry.getKey());
+        }
+
+        LoggingTimer timer = new LoggingTimer(logger, "Warming index generation " + generation + " at " + path);
+        try {
+            for (Entry<IndexPartition, List<String>> entry : resourceTypes.entrySet()) {
+                IndexSearcher searcher = entry.getKey().getSearcher();
+                for (String resourceType : entry.getValue()) {
+                    searcher.count(new TermQuery(new Term(FieldNames.RESOURCE_TYPE, resourceType)));
+                }
+                searcher.count(new TermQuery(new Term(FieldNames.STATUS, "active")));
+
+                TopDocs docs = searcher.search(new MatchAllDocsQuery(), WARMING_DOCUMENT_COUNT);
+                for (ScoreDoc scoreDoc : docs.scoreDocs) {
+                    getJson(entry.getKey().getDocBase() + scoreDoc.doc);
+                }
+            }
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * @return the UTF-8 encoded JSON of the resource indexed as the specified document, read from the blob file if the
+     *         generation has one or from the document's stored fields otherwise
+     */
+    public ByteBuffer getJson(int doc) throws IOException {
+        if (blobStore == null) {
+            String json = reader.document(doc, JSON_FIELD).get(FieldNames.JSON);
+            if (json == null) {
+                throw new IOException("No JSON stored for document " + doc + " in " + this);
+            }
+            return StandardCharsets.UTF_8.encode(json);
+        }
+
+        List<LeafReaderContext> leaves = reader.leaves();
+        LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+        int leafDoc = doc - leaf.docBase;
+        NumericDocValues offset = DocValues.getNumeric(leaf.reader(), FieldNames.JSON_OFFSET);
+        NumericDocValues length = DocValues.getNumeric(leaf.reader(), FieldNames.JSON_LENGTH);
+        if (!offset.advanceExact(leafDoc) || !length.advanceExact(leafDoc)) {
+            throw new IOException("No JSON offset recorded for document " + doc + " in " + this);
+        }
+        return blobStore.get(offset.longValue(), (int) length.longValue());
+    }
+
+    /**
+     * @return the version and last updated time of the resource indexed as the specified document, from the meta of
+     *         its stored JSON, or where that doesn't have them from the resource's last modified date, which is then
+     *         both the version and, at the start of the day in UTC, the last updated time. Neither is set if the
+     *         resource has no last modified date either.
+     */
+    public Meta getMeta(int doc) throws IOException {
+        Meta meta = PassThrough.readMeta(getJson(doc));
+        if (meta.hasVersionId() && meta.hasLastUpdated()) {
+            return meta;
+        }
+        List<LeafReaderContext> leaves = reader.leaves();
+        LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+        SortedDocValues lastModified = DocValues.getSorted(leaf.reader(), FieldNames.LAST_MODIFIED);
+        if (lastModified.advanceExact(doc - leaf.docBase)) {
+            String date = lastModified.lookupOrd(lastModified.ordValue()).utf8ToString();
+            if (!meta.hasVersionId()) {
+                meta.setVersionId(date);
+            }
+            if (!meta.hasLastUpdated()) {
+                meta.setLastUpdatedElement(new InstantType(date + "T00:00:00Z"));
+            }
+        }
+        return meta;
+    }
+
+    /**
+     * Receives the JSON of each document {@link IndexGeneration#forEachJson(IndexPartition, Query, JsonConsumer)}
+     * goes through.
+     */
+    @FunctionalInterface
+    public interface JsonConsumer {
+        void accept(ByteBuffer json) throws IOException;
+    }
+
+    /**
+     * Goes through the JSON of every live document of the partition matching the query in doc order, one shard
+     * segment at a time, reading each segment's JSON offsets and lengths with a single forward only pass over its doc
+     * values. Nothing is scored, collected or cached, so it takes the same memory however many documents match.
+     *
+     * @return the number of documents passed to the consumer
+     */
+    public long forEachJson(IndexPartition partition, Query query, JsonConsumer consumer) throws IOException {
+        IndexSearcher searcher = partition.getSearcher();
+        Weight weight = searcher.createWeight(searcher.rewrite(query), false, 1f);
+        long count = 0;
+        for (LeafReaderContext leaf : partition.getReader().leaves()) {
+            Scorer scorer = weight.scorer(leaf);
+            if (scorer == null) {
+                continue;
+            }
+            DocIdSetIterator docs = scorer.iterator();
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            NumericDocValues offset = null;
+            NumericDocValues length = null;
+            if (blobStore != null) {
+                offset = DocValues.getNumeric(leaf.reader(), FieldNames.JSON_OFFSET);
+                length = DocValues.getNumeric(leaf.reader(), FieldNames.JSON_LENGTH);
+            }
+            for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docs.nextDoc()) {
+                if (liveDocs != null && !liveDocs.get(doc)) {
+                    continue;
+                }
+                if (blobStore == null) {
+                    String json = leaf.reader().document(doc, JSON_FIELD).get(FieldNames.JSON);
+                    if (json == null) {
+                        throw new IOException("No JSON stored for document " + doc + " of " + leaf + " in " + this);
+                    }
+                    consumer.accept(StandardCharsets.UTF_8.encode(json));
+                } else {
+                    if (!offset.advanceExact(doc) || !length.advanceExact(doc)) {
+                        throw new IOException(
+                            "No JSON offset recorded for document " + doc + " of " + leaf + " in " + this);
+                    }
+                    consumer.accept(blobStore.get(offset.longValue(), (int) length.longValue()));
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the document the resource of the specified type and id is indexed as, or -1 if there is no such resource
+     */
+    public int getDoc(String resourceType, String id) {
+        return resourceIds.getDoc(resourceType, id);
+    }
+
+    /**
+     * @return the id of the resource indexed as the specified document
+     */
+    public String getId(int doc) {
+        return resourceIds.getId(doc);
+    }
+
+    /**
+     * @return the partition resources of the specified type are searched in, the type being the lower case resource
+     *         type name
+     */
+    public IndexPartition getPartition(String resourceType) {
+        IndexPartition partition = partitions.get(resourceType);
+        if (partition == null) {
+            throw new IllegalArgumentException("No index partition for resource type " + resourceType);
+        }
+        return partition;
+    }
+
+    /**
+     * @return the Medication suggester, or null if the generation was built without one
+     */
+    public AnalyzingInfixSuggester getSuggester() {
+        return suggester;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return when the generation was committed, in milliseconds since the epoch
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public IndexReader getReader() {
+        return reader;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexGeneration [generation=" + generation + ", path=" + path + "]";
+    }
+}
@@ -0,0 +1,120 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Manages the published generations of the index under a root directory laid out as
+ * <code>&lt;root&gt;/&lt;generation&gt;/</code>, where the generation is a number and the highest published generation
+ * is the one served. A generation is published by moving a completely written index directory into place under its
+ * numeric name, so partially copied generations are never picked up.
+ * <p>
+ * A root directory that holds an index directly, rather than generation sub directories, is served as generation
+ * {@value #LEGACY_GENERATION} so existing deployments keep working.
+ * <p>
+ * {@link #maybeRefresh()} opens and warms a newer generation if one has been published and swaps it in atomically,
+ * the previous generation is closed once all searches that acquired it have released it.
+ */
+public class IndexGenerationManager extends ReferenceManager<IndexGeneration> {
+
+    public static final long LEGACY_GENERATION = 0;
+
+    private static final Logger logger = Logger.getLogger(IndexGenerationManager.class.getCanonicalName());
+
+    private Path root;
+    private FilterCache filterCache;
+    private SearchExecutor searchExecutor;
+
+    public IndexGenerationManager(Path root, FilterCache filterCache, SearchExecutor searchExecutor)
+            throws IOException {
+        this.root = root;
+        this.filterCache = filterCache;
+        this.searchExecutor = searchExecutor;
+        IndexGeneration latest = openLatest(-1);
+        if (latest == null) {
+            throw new IOException("No published index generation found at " + root);
+        }
+        current = latest;
+        logger.info("Serving index generation " + latest.getGeneration() + " from " + latest.getPath());
+    }
+
+    @Override
+    protected void decRef(IndexGeneration reference) throws IOException {
+        reference.getReader().decRef();
+    }
+
+    @Override
+    protected IndexGeneration refreshIfNeeded(IndexGeneration referenceToRefresh) throws IOException {
+        IndexGeneration latest = openLatest(referenceToRefresh.getGeneration());
+        if (latest != null) {
+            logger.info("Swapping index generation " + referenceToRefresh.getGeneration() + " for "
+                    + latest.getGeneration() + " from " + latest.getPath());
+        }
+        return latest;
+    }
+
+    @Override
+    protected boolean tryIncRef(IndexGeneration reference) throws IOException {
+        return reference.getReader().tryIncRef();
+    }
+
+    @Override
+    protected int getRefCount(IndexGeneration reference) {
+        return reference.getReader().getRefCount();
+    }
+
+    /**
+     * Opens and warms the latest published generation if it is newer than the specified generation, otherwise
+     * returns null.
+     */
+    private IndexGeneration openLatest(long newerThan) throws IOException {
+        long latest = -1;
+        Path latestPath = null;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path candidate : stream) {
+                String name = candidate.getFileName().toString();
+                if (name.matches("\\d+") && Long.parseLong(name) > latest
+                        && IndexGeneration.isIndexGeneration(candidate)) {
+                    latest = Long.parseLong(name);
+                    latestPath = candidate;
+                }
+            }
+        }
+
+        if (latestPath == null && IndexGeneration.isIndexGeneration(root)) {
+            latest = LEGACY_GENERATION;
+            latestPath = root;
+        }
+
+        if (latestPath == null || latest <= newerThan) {
+            return null;
+        }
+
+        IndexGeneration generation = IndexGeneration.open(latest, latestPath, filterCache, searchExecutor);
+        try {
+            generation.warm();
+        } catch (IOException | RuntimeException e) {
+            generation.getReader().decRef();
+            throw e;
+        }
+        return generation;
+    }
+
+    static boolean containsIndex(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return false;
+        }
+        try (Directory directory = FSDirectory.open(path)) {
+            return DirectoryReader.indexExists(directory);
+        }
+    }
+}
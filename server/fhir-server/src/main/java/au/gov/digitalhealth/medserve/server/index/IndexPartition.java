@@ -0,0 +1,74 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Sort;
+
+/**
+ * One partition of an index generation, the documents of a single resource type in their own Lucene index, or all of
+ * the documents of a generation built before the index was partitioned. Each partition has its own searcher, so a
+ * search only goes through the terms and postings of the resource type it is for, and its own filters in the
+ * {@link FilterCache}.
+ * <p>
+ * A sharded partition's reader combines its shards, so they are searched together and their top results and totals
+ * merged by the searcher. The documents of each segment are in index sort order, and the index builder merges each
+ * shard down to a single segment, but the partition's documents as a whole are only in that order shard by shard.
+ * <p>
+ * Doc ids from the partition's searcher are numbered within the partition, they are offset by {@link #getDocBase()}
+ * to get the doc id in the generation used to read the resource.
+ */
+public final class IndexPartition {
+
+    private final String name;
+    private final IndexReader reader;
+    private final IndexSearcher searcher;
+    private final int docBase;
+    private final int shardCount;
+
+    IndexPartition(String name, IndexReader reader, IndexSearcher searcher, int docBase, int shardCount) {
+        this.name = name;
+        this.reader = reader;
+        this.searcher = searcher;
+        this.docBase = docBase;
+        this.shardCount = shardCount;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public IndexReader getReader() {
+        return reader;
+    }
+
+    public IndexSearcher getSearcher() {
+        return searcher;
+    }
+
+    /**
+     * @return the doc id in the generation of the partition's first document
+     */
+    public int getDocBase() {
+        return docBase;
+    }
+
+    /**
+     * @return the number of shards the partition is split into, 1 if it isn't sharded
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * @return the sort the documents of each shard of the partition are in, or null if they aren't sorted
+     */
+    public Sort getIndexSort() {
+        return reader.leaves().isEmpty() ? null : reader.leaves().get(0).reader().getMetaData().getSort();
+    }
+
+    @Override
+    public String toString() {
+        return "IndexPartition [name=" + name + ", docs=" + reader.numDocs() + ", docBase=" + docBase + ", shards="
+                + shardCount + "]";
+    }
+}
@@ -0,0 +1,151 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Position in a search's results immediately after the last result returned for a page, used to fetch the following
+ * page with a search-after rather than collecting and skipping every preceding result. A cursor is only valid against
+ * the index generation it was created from.
+ * <p>
+ * Cursors can be encoded as text, so a page link can carry the cursor for its page to whichever server serves it, see
+ * {@link #encode()}.
+ */
+public final class PagingCursor {
+
+    private final long generation;
+    private final int offset;
+    private final ScoreDoc after;
+
+    public PagingCursor(long generation, int offset, ScoreDoc after) {
+        this.generation = generation;
+        this.offset = offset;
+        this.after = after;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the index of the first result following this cursor
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    public ScoreDoc getAfter() {
+        return after;
+    }
+
+    /**
+     * @return the cursor as URL safe text, with its sort values if it has any, which {@link #decode(String)} reads
+     *         back
+     */
+    public String encode() {
+        StringBuilder text = new StringBuilder().append(generation)
+            .append('~')
+            .append(offset)
+            .append('~')
+            .append(after.doc)
+            .append('~')
+            .append(Float.floatToIntBits(after.score))
+            .append('~')
+            .append(after.shardIndex);
+        if (after instanceof FieldDoc) {
+            for (Object value : ((FieldDoc) after).fields) {
+                text.append('~').append(encodeValue(value));
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the text isn't an encoded cursor
+     */
+    public static PagingCursor decode(String text) {
+        String[] parts = text.split("~", -1);
+        if (parts.length < 5) {
+            throw new IllegalArgumentException("Invalid paging cursor " + text);
+        }
+        try {
+            int doc = Integer.parseInt(parts[2]);
+            float score = Float.intBitsToFloat(Integer.parseInt(parts[3]));
+            int shardIndex = Integer.parseInt(parts[4]);
+            ScoreDoc after;
+            if (parts.length == 5) {
+                after = new ScoreDoc(doc, score, shardIndex);
+            } else {
+                Object[] fields = new Object[parts.length - 5];
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i] = decodeValue(parts[i + 5]);
+                }
+                after = new FieldDoc(doc, score, fields, shardIndex);
+            }
+            return new PagingCursor(Long.parseLong(parts[0]), Integer.parseInt(parts[1]), after);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid paging cursor " + text, e);
+        }
+    }
+
+    /**
+     * Encodes a sort value as its type, n for a missing value, s for a string, i for an int, l for a long, f for a
+     * float or d for a double, followed by the value. Floating point values are encoded by their bits so they survive
+     * exactly.
+     */
+    private static String encodeValue(Object value) {
+        if (value == null) {
+            return "n";
+        } else if (value instanceof BytesRef) {
+            BytesRef bytes = (BytesRef) value;
+            return "s" + Base64.getUrlEncoder()
+                .withoutPadding()
+                .encodeToString(Arrays.copyOfRange(bytes.bytes, bytes.offset, bytes.offset + bytes.length));
+        } else if (value instanceof Integer) {
+            return "i" + value;
+        } else if (value instanceof Long) {
+            return "l" + value;
+        } else if (value instanceof Float) {
+            return "f" + Float.floatToIntBits((Float) value);
+        } else if (value instanceof Double) {
+            return "d" + Double.doubleToLongBits((Double) value);
+        }
+        throw new IllegalArgumentException("Cannot encode sort value " + value + " of " + value.getClass());
+    }
+
+    private static Object decodeValue(String text) {
+        if (text.isEmpty()) {
+            throw new IllegalArgumentException("Missing sort value type");
+        }
+        String value = text.substring(1);
+        switch (text.charAt(0)) {
+            case 'n':
+                return null;
+            case 's':
+                return new BytesRef(Base64.getUrlDecoder().decode(value));
+            case 'i':
+                return Integer.valueOf(value);
+            case 'l':
+                return Long.valueOf(value);
+            case 'f':
+                return Float.intBitsToFloat(Integer.parseInt(value));
+            case 'd':
+                return Double.longBitsToDouble(Long.parseLong(value));
+            default:
+                throw new IllegalArgumentException("Unknown sort value type " + text.charAt(0));
+        }
+    }
+
+    boolean isValidFor(IndexGeneration indexGeneration, int fromIndex) {
+        return generation == indexGeneration.getGeneration() && offset == fromIndex;
+    }
+
+    @Override
+    public String toString() {
+        return "PagingCursor [generation=" + generation + ", offset=" + offset + ", after=" + after + "]";
+    }
+}
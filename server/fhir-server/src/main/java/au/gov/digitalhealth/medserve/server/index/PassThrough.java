@@ -0,0 +1,149 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.hl7.fhir.dstu3.model.Base;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.dstu3.model.Meta;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Pass-through mode lets a request that needs no projection of the stored resources be answered with the JSON stored
+ * in the index, rather than parsing it into a resource only for it to be encoded again straight away. While it is
+ * enabled for the current thread, resources read from the index are returned as placeholders which only carry their
+ * id and the document to load their stored JSON from, and the response is expected to be written from that JSON.
+ * <p>
+ * A placeholder doesn't load its JSON until it is written, so a response is written one resource at a time as each is
+ * loaded from the index, rather than loading them all first. The generations placeholders are read from are kept open
+ * until the request completes and pass-through mode is cleared.
+ */
+public final class PassThrough {
+
+    private static final String JSON_USER_DATA_KEY = PassThrough.class.getName() + ".json";
+
+    private static final ThreadLocal<Boolean> enabled = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private static final ThreadLocal<Set<IndexGeneration>> retained =
+            ThreadLocal.withInitial(() -> Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    private PassThrough() {
+        throw new AssertionError("Static method helper class not to be constructed!");
+    }
+
+    public static void setEnabled(boolean enable) {
+        enabled.set(enable);
+    }
+
+    public static boolean isEnabled() {
+        return enabled.get();
+    }
+
+    /**
+     * Disables pass-through mode for the current thread, releasing the generations its placeholders were read from.
+     */
+    public static void clear() {
+        enabled.remove();
+        for (IndexGeneration generation : retained.get()) {
+            try {
+                generation.getReader().decRef();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed releasing " + generation, e);
+            }
+        }
+        retained.remove();
+    }
+
+    /**
+     * Creates a placeholder for a document, which loads the document's JSON when it is first asked for.
+     */
+    static <T extends IBaseResource> T createPlaceholder(Class<T> clazz, String id, IndexGeneration generation,
+            int doc) {
+        if (retained.get().add(generation)) {
+            generation.getReader().incRef();
+        }
+        T placeholder;
+        try {
+            placeholder = clazz.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Cannot create placeholder for " + clazz.getName(), e);
+        }
+        Resource resource = (Resource) placeholder;
+        resource.setIdElement(new IdType(resource.fhirType(), id));
+        resource.setUserData(JSON_USER_DATA_KEY, new DeferredJson(generation, doc));
+        return placeholder;
+    }
+
+    public static boolean isPlaceholder(IBaseResource resource) {
+        return resource instanceof Base && ((Base) resource).getUserData(JSON_USER_DATA_KEY) != null;
+    }
+
+    /**
+     * @return the UTF-8 encoded stored JSON of a placeholder resource, or null if the resource isn't a placeholder
+     */
+    public static ByteBuffer getJson(IBaseResource resource) {
+        Object json = resource instanceof Base ? ((Base) resource).getUserData(JSON_USER_DATA_KEY) : null;
+        return json == null ? null : ((DeferredJson) json).load();
+    }
+
+    /**
+     * Reads the version and last updated time from the meta of a resource's stored JSON, skipping over the rest of
+     * the resource up to its meta.
+     *
+     * @return the meta, which is empty if the resource has none
+     */
+    public static Meta readMeta(ByteBuffer json) throws IOException {
+        Meta meta = new Meta();
+        try (JsonReader reader = new JsonReader(new StringReader(StandardCharsets.UTF_8.decode(json).toString()))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals("meta")) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "versionId":
+                            meta.setVersionId(reader.nextString());
+                            break;
+                        case "lastUpdated":
+                            meta.setLastUpdatedElement(new InstantType(reader.nextString()));
+                            break;
+                        default:
+                            reader.skipValue();
+                    }
+                }
+                break;
+            }
+        }
+        return meta;
+    }
+
+    private static final class DeferredJson {
+        private final IndexGeneration generation;
+        private final int doc;
+
+        private DeferredJson(IndexGeneration generation, int doc) {
+            this.generation = generation;
+            this.doc = doc;
+        }
+
+        private ByteBuffer load() {
+            try {
+                return generation.getJson(doc);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed loading JSON of document " + doc + " from " + generation, e);
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package au.gov.digitalhealth.medserve.server.index;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -8,12 +9,24 @@ import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.BooleanQuery.Builder;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.SortedNumericSortField;
+import org.apache.lucene.search.TermInSetQuery;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.util.BytesRef;
 import org.hl7.fhir.dstu3.model.BaseResource;
+import org.hl7.fhir.dstu3.model.IdType;
 
+import au.gov.digitalhealth.medserve.server.indexbuilder.IndexBuildingResourceProcessor;
 import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.param.DateAndListParam;
 import ca.uhn.fhir.rest.param.DateOrListParam;
 import ca.uhn.fhir.rest.param.DateParam;
@@ -28,10 +41,33 @@ import ca.uhn.fhir.rest.param.TokenAndListParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.param.TokenParamModifier;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
 
+/**
+ * Builds the Lucene queries for search parameters. Structural constraints are added as FILTER or MUST_NOT clauses so
+ * they aren't scored and their matches can be reused from the {@link FilterCache}, only text matching takes part in
+ * scoring.
+ * <p>
+ * Text search ranks resources whose display text is exactly the searched text first, then those with words exactly
+ * matching the searched words ahead of those only starting with them. Resources that score the same are returned in
+ * the order of their rank in the index, see {@link IndexBuildingResourceProcessor}.
+ * <p>
+ * <code>_sort</code> is translated to a {@link Sort} over the doc values the index builder adds for the sortable
+ * parameters, see {@link #SORT_PARAMETERS}.
+ */
 public final class QueryBuilder {
 
+    private static final float EXACT_DISPLAY_BOOST = 10f;
+    private static final float EXACT_WORD_BOOST = 2f;
+
+    /**
+     * Search parameters results can be sorted by. Display sorts on the normalised display text so it is case
+     * insensitive.
+     */
+    public static final List<String> SORT_PARAMETERS = Arrays.asList(FieldNames.DISPLAY, FieldNames.LAST_MODIFIED,
+        FieldNames.MEDICATION_RESOURCE_TYPE, FieldNames.INGREDIENT_COUNT);
+
     private QueryBuilder() {
         throw new AssertionError("Static method helper class not to be constructed!");
     }
@@ -44,9 +80,10 @@ public final class QueryBuilder {
             builder.add(new TermQuery(new Term(fieldName, codeValue + "|" + system)), occur);
         } else {
             Builder subquery = new BooleanQuery.Builder();
-            subquery.add(new PrefixQuery(new Term(fieldName, codeValue + "|")), Occur.SHOULD);
+            subquery.add(new SystemlessCodeQuery(fieldName, codeValue), Occur.SHOULD);
             if (fieldName.equals(FieldNames.CODE)) {
-                subquery.add(new PrefixQuery(new Term(FieldNames.ID, codeValue)), Occur.SHOULD);
+                // A resource's own id is also its code
+                subquery.add(new TermQuery(new Term(FieldNames.ID, codeValue)), Occur.SHOULD);
             }
             builder.add(subquery.build(), occur);
         }
@@ -67,7 +104,7 @@ public final class QueryBuilder {
                                     && nextString.getModifier().equals(TokenParamModifier.NOT));
                     searchCodableConcept(nextString, subAndQuery, string, Occur.SHOULD);
                 }
-                builder.add(subAndQuery.build(), mustnot ? Occur.MUST_NOT : Occur.MUST);
+                builder.add(subAndQuery.build(), mustnot ? Occur.MUST_NOT : Occur.FILTER);
             }
         }
     }
@@ -121,7 +158,7 @@ public final class QueryBuilder {
                     }
 
                 }
-                builder.add(subAndQuery.build(), Occur.MUST);
+                builder.add(subAndQuery.build(), Occur.FILTER);
             }
         }
     }
@@ -172,7 +209,7 @@ public final class QueryBuilder {
                     }
 
                 }
-                builder.add(subAndQuery.build(), Occur.MUST);
+                builder.add(subAndQuery.build(), Occur.FILTER);
             }
         }
     }
@@ -192,7 +229,7 @@ public final class QueryBuilder {
                                     && nextString.getModifier().equals(TokenParamModifier.NOT));
                     searchReference(nextString, subAndQuery, fieldName, type, Occur.SHOULD);
                 }
-                builder.add(subAndQuery.build(), mustnot ? Occur.MUST_NOT : Occur.MUST);
+                builder.add(subAndQuery.build(), mustnot ? Occur.MUST_NOT : Occur.FILTER);
             }
         }
     }
@@ -200,23 +237,46 @@ public final class QueryBuilder {
     public static void addOptionalStringOrList(StringOrListParam param, Builder builder, String fieldName) {
         if (param != null) {
             List<StringParam> queryTokens = param.getValuesAsQueryTokens();
-            // Only return results that match at least one of the tokens in the list below
+            if (queryTokens.size() == 1) {
+                // Added as a bare term so the common single valued filters are shared in the filter cache
+                builder.add(new TermQuery(new Term(fieldName, queryTokens.get(0).getValue())), Occur.FILTER);
+                return;
+            }
 
+            // Only return results that match at least one of the tokens in the list below
             Builder subAndQuery = new BooleanQuery.Builder();
             for (StringParam nextString : queryTokens) {
                 subAndQuery.add(new TermQuery(new Term(fieldName, nextString.getValue())),
                     Occur.SHOULD);
             }
-            builder.add(subAndQuery.build(), Occur.MUST);
+            builder.add(subAndQuery.build(), Occur.FILTER);
         }
     }
 
-    public static <T extends BaseResource> Builder createTextSearchBuilder(Class<T> clazz, TokenAndListParam code,
-            StringAndListParam text, StringOrListParam status, DateAndListParam lastModified) {
+    /**
+     * Limits results to resources with one of the ids of each of the lists of ids, each list looked up with a single
+     * set membership query however many ids it has.
+     */
+    public static void addOptionalIdAndList(TokenAndListParam ids, Builder builder) {
+        if (ids != null) {
+            for (TokenOrListParam idQuery : ids.getValuesAsQueryTokens()) {
+                List<BytesRef> idTerms = new ArrayList<>();
+                for (TokenParam id : idQuery.getValuesAsQueryTokens()) {
+                    idTerms.add(new BytesRef(new IdType(id.getValue()).getIdPart()));
+                }
+                builder.add(new TermInSetQuery(FieldNames.ID, idTerms), Occur.FILTER);
+            }
+        }
+    }
+
+    public static <T extends BaseResource> Builder createTextSearchBuilder(Class<T> clazz, TokenAndListParam id,
+            TokenAndListParam code, StringAndListParam text, StringOrListParam status, DateAndListParam lastModified) {
         String resourceType = clazz.getSimpleName().replace("Extended", "").toLowerCase();
         Builder builder = new BooleanQuery.Builder()
             .add(new TermQuery(new Term(FieldNames.RESOURCE_TYPE, resourceType)), Occur.FILTER);
 
+        QueryBuilder.addOptionalIdAndList(id, builder);
+
         QueryBuilder.addOptionalCodableConceptAndList(code, builder, FieldNames.CODE);
 
         if (text != null) {
@@ -229,9 +289,14 @@ public final class QueryBuilder {
                 for (StringParam nextString : queryTokens) {
                     Builder subAndQuery2 = new BooleanQuery.Builder();
                     Arrays.stream(nextString.getValue().split(" "))
-                        .forEach(
-                            s -> subAndQuery2.add(new PrefixQuery(new Term(FieldNames.DISPLAY, s.toLowerCase())),
-                                Occur.MUST));
+                        .forEach(s -> {
+                            subAndQuery2.add(new DisplayPrefixQuery(s.toLowerCase()), Occur.MUST);
+                            subAndQuery2.add(boost(new TermQuery(new Term(FieldNames.DISPLAY, s.toLowerCase())),
+                                EXACT_WORD_BOOST), Occur.SHOULD);
+                        });
+                    subAndQuery2.add(boost(new TermQuery(new Term(FieldNames.DISPLAY_EXACT,
+                        IndexBuildingResourceProcessor.normaliseDisplay(nextString.getValue()))), EXACT_DISPLAY_BOOST),
+                        Occur.SHOULD);
 
                     subAndQuery.add(subAndQuery2.build(), Occur.SHOULD);
                 }
@@ -251,6 +316,48 @@ public final class QueryBuilder {
         return builder;
     }
 
+    /**
+     * @return the sort for the <code>_sort</code> parameter and any chained sorts, or null to return results in the
+     *         default order
+     */
+    public static Sort createSort(SortSpec sortSpec) {
+        if (sortSpec == null) {
+            return null;
+        }
+        List<SortField> fields = new ArrayList<>();
+        for (SortSpec spec = sortSpec; spec != null; spec = spec.getChain()) {
+            boolean reverse = SortOrderEnum.DESC.equals(spec.getOrder());
+            SortField field;
+            switch (spec.getParamName()) {
+                case FieldNames.DISPLAY:
+                    field = new SortField(FieldNames.DISPLAY_EXACT, SortField.Type.STRING, reverse);
+                    break;
+                case FieldNames.LAST_MODIFIED:
+                case FieldNames.MEDICATION_RESOURCE_TYPE:
+                    field = new SortField(spec.getParamName(), SortField.Type.STRING, reverse);
+                    break;
+                case FieldNames.INGREDIENT_COUNT:
+                    field = new SortedNumericSortField(spec.getParamName(), SortField.Type.INT, reverse);
+                    break;
+                default:
+                    throw new InvalidRequestException(
+                        "Cannot sort by '" + spec.getParamName() + "', results can be sorted by " + SORT_PARAMETERS);
+            }
+            // Resources without a value, such as Organizations which have no last-modified, always come last
+            if (field.getType() == SortField.Type.STRING) {
+                field.setMissingValue(reverse ? SortField.STRING_FIRST : SortField.STRING_LAST);
+            } else {
+                field.setMissingValue(reverse ? Integer.MIN_VALUE : Integer.MAX_VALUE);
+            }
+            fields.add(field);
+        }
+        return new Sort(fields.toArray(new SortField[fields.size()]));
+    }
+
+    private static Query boost(Query query, float boost) {
+        return new BoostQuery(new ConstantScoreQuery(query), boost);
+    }
+
     public static void searchCodableConcept(TokenParam code, Builder builder, String fieldName, Occur occur) {
         if (code.getModifier() == null || code.getModifier().equals(TokenParamModifier.NOT)) {
             addCodesearch(code, builder, fieldName, occur);
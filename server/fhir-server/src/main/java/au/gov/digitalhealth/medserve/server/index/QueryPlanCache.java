@@ -0,0 +1,171 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.apache.lucene.search.Query;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IQueryParameterAnd;
+import ca.uhn.fhir.model.api.IQueryParameterOr;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.util.UrlUtil;
+
+/**
+ * Least recently used cache of the Lucene queries built for search parameters, keyed by index generation and the
+ * canonical form of the parameters, see {@link #canonicalise(String, Map)}. Repeated searches skip building their
+ * query, and present the same query instance to the {@link FilterCache}. Entries for a generation are discarded when
+ * a newer generation is swapped in.
+ * <p>
+ * Cached queries are shared between searches so must not be modified.
+ */
+public class QueryPlanCache {
+
+    public static final int MAX_QUERIES = Integer.getInteger("search.queryPlanCache.maxQueries", 1000);
+
+    private static final FhirContext context = FhirContext.forDstu3();
+
+    private final int maxQueries;
+    private final LinkedHashMap<Key, Query> queries = new LinkedHashMap<>(256, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public QueryPlanCache() {
+        this(MAX_QUERIES);
+    }
+
+    public QueryPlanCache(int maxQueries) {
+        this.maxQueries = maxQueries;
+    }
+
+    /**
+     * Gets the query cached for the generation and canonical parameters, building and caching it if there isn't one.
+     */
+    public Query get(long generation, String parameters, Supplier<Query> builder) {
+        Key key = new Key(generation, parameters);
+        Query query;
+        synchronized (this) {
+            query = queries.get(key);
+        }
+        if (query != null) {
+            hits.increment();
+            return query;
+        }
+        misses.increment();
+        query = builder.get();
+        if (maxQueries > 0) {
+            synchronized (this) {
+                queries.put(key, query);
+                Iterator<Query> iterator = queries.values().iterator();
+                while (queries.size() > maxQueries && iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                    evictions.increment();
+                }
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Discards all entries for generations older than the specified generation.
+     */
+    public synchronized void invalidateBefore(long generation) {
+        queries.keySet().removeIf(key -> key.generation < generation);
+    }
+
+    /**
+     * Creates the canonical form of the search parameters of a resource type, which is the same for parameters that
+     * only differ in their order, or the order of the values in their and and or lists. Parameters without a value
+     * are left out. Values are URL encoded so they can't be confused with the separators between them. A search's sort
+     * isn't part of its query, so it is left to the search session, where the order of its fields is kept.
+     */
+    public static String canonicalise(String resourceType, Map<String, Object> parameters) {
+        StringBuilder result = new StringBuilder(resourceType).append('?');
+        for (Map.Entry<String, Object> parameter : new TreeMap<>(parameters).entrySet()) {
+            if (parameter.getValue() != null) {
+                result.append(parameter.getKey()).append('=').append(canonicalise(parameter.getValue())).append('&');
+            }
+        }
+        return result.toString();
+    }
+
+    private static String canonicalise(Object parameter) {
+        List<String> values = new ArrayList<>();
+        if (parameter instanceof IQueryParameterAnd) {
+            for (Object or : ((IQueryParameterAnd<?>) parameter).getValuesAsQueryTokens()) {
+                values.add("(" + canonicalise(or) + ")");
+            }
+        } else if (parameter instanceof IQueryParameterOr) {
+            for (Object value : ((IQueryParameterOr<?>) parameter).getValuesAsQueryTokens()) {
+                values.add(canonicalise(value));
+            }
+        } else if (parameter instanceof IQueryParameterType) {
+            IQueryParameterType value = (IQueryParameterType) parameter;
+            return Objects.toString(value.getQueryParameterQualifier(), "") + ':'
+                    + UrlUtil.escapeUrlParam(Objects.toString(value.getValueAsQueryToken(context), ""));
+        } else {
+            return UrlUtil.escapeUrlParam(parameter.toString());
+        }
+        values.sort(null);
+        return String.join(",", values);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized int size() {
+        return queries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "QueryPlanCache [size=" + size() + ", maxQueries=" + maxQueries + ", hits=" + getHits() + ", misses="
+                + getMisses() + ", evictions=" + getEvictions() + "]";
+    }
+
+    private static final class Key {
+        private final long generation;
+        private final String parameters;
+
+        private Key(long generation, String parameters) {
+            this.generation = generation;
+            this.parameters = parameters;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(generation, parameters);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return generation == other.generation && parameters.equals(other.parameters);
+        }
+    }
+}
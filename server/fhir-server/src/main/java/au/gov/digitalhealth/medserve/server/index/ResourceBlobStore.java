@@ -0,0 +1,113 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import au.gov.digitalhealth.medserve.server.indexbuilder.constants.IndexFiles;
+
+/**
+ * Read only, memory mapped view of the {@value IndexFiles#RESOURCE_BLOB} file the index builder writes alongside an
+ * index generation. Resource JSON is read as a slice of the mapped file, so loading it is a lookup of the document's
+ * offset and length with no copying or decompression.
+ * <p>
+ * A buffer can map at most 2 GiB, so like Lucene's <code>MMapDirectory</code> the file is mapped in chunks of
+ * 2<sup><code>index.blob.chunkSizePower</code></sup> bytes, 1 GiB by default, and can be as large as the offsets
+ * recorded in the index allow. The rare resource whose JSON spans the boundary between two chunks is copied into a
+ * buffer of its own.
+ */
+public final class ResourceBlobStore {
+
+    public static final int CHUNK_SIZE_POWER = Integer.getInteger("index.blob.chunkSizePower", 30);
+
+    private final Path path;
+    private final MappedByteBuffer[] chunks;
+    private final int chunkSizePower;
+    private final long size;
+
+    private ResourceBlobStore(Path path, MappedByteBuffer[] chunks, int chunkSizePower, long size) {
+        this.path = path;
+        this.chunks = chunks;
+        this.chunkSizePower = chunkSizePower;
+        this.size = size;
+    }
+
+    /**
+     * @return the blob store of the index generation in the specified directory, or null if the generation was built
+     *         before resource JSON was written to a blob file and keeps it in stored fields instead
+     */
+    static ResourceBlobStore open(Path directory) throws IOException {
+        return open(directory, CHUNK_SIZE_POWER);
+    }
+
+    static ResourceBlobStore open(Path directory, int chunkSizePower) throws IOException {
+        if (chunkSizePower < 0 || chunkSizePower > 30) {
+            throw new IllegalArgumentException("Chunk size power must be between 0 and 30, not " + chunkSizePower);
+        }
+        Path path = directory.resolve(IndexFiles.RESOURCE_BLOB);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long chunkSize = 1L << chunkSizePower;
+            int chunkCount = (int) Math.max(1, (size + chunkSize - 1) >>> chunkSizePower);
+            MappedByteBuffer[] chunks = new MappedByteBuffer[chunkCount];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = i * chunkSize;
+                chunks[i] = channel.map(MapMode.READ_ONLY, start, Math.min(chunkSize, size - start));
+            }
+            return new ResourceBlobStore(path, chunks, chunkSizePower, size);
+        }
+    }
+
+    /**
+     * @return a read only buffer over the specified bytes of the file, positioned at its start
+     */
+    public ByteBuffer get(long offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IndexOutOfBoundsException(
+                "Blob at offset " + offset + " with length " + length + " is outside of " + path);
+        }
+        if (length == 0) {
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        }
+        int chunk = (int) (offset >>> chunkSizePower);
+        int position = (int) (offset & ((1L << chunkSizePower) - 1));
+        if (position + length <= chunks[chunk].capacity()) {
+            return slice(chunks[chunk], position, length).slice().asReadOnlyBuffer();
+        }
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        while (copy.hasRemaining()) {
+            int end = Math.min(chunks[chunk].capacity(), position + copy.remaining());
+            copy.put(slice(chunks[chunk], position, end - position));
+            chunk++;
+            position = 0;
+        }
+        ((Buffer) copy).flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    private static ByteBuffer slice(ByteBuffer chunk, int position, int length) {
+        ByteBuffer slice = chunk.duplicate();
+        // Set through Buffer so the class runs on Java 8, where ByteBuffer doesn't override these
+        ((Buffer) slice).position(position);
+        ((Buffer) slice).limit(position + length);
+        return slice;
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceBlobStore [path=" + path + ", size=" + size + ", chunks=" + chunks.length + "]";
+    }
+}
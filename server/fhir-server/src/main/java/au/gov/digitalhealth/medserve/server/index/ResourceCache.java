@@ -0,0 +1,150 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Least recently used cache of resources parsed from the index, keyed by index generation, resource type and id and
+ * bounded by the total size of the JSON the cached resources were parsed from. Entries for a generation are
+ * discarded when a newer generation is swapped in.
+ * <p>
+ * Cached resources are shared between requests so must be treated as read only.
+ */
+public class ResourceCache {
+
+    public static final long MAX_JSON_CHARS = Long.getLong("resource.cache.maxJsonChars", 10_000_000L);
+
+    private final long maxWeight;
+    private long weight;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ResourceCache() {
+        this(MAX_JSON_CHARS);
+    }
+
+    public ResourceCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    public <T extends IBaseResource> T get(long generation, Class<T> clazz, String id) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(new Key(generation, clazz, id));
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return clazz.cast(entry.resource);
+    }
+
+    public void put(long generation, Class<? extends IBaseResource> clazz, String id, IBaseResource resource,
+            int jsonLength) {
+        if (jsonLength > maxWeight) {
+            return;
+        }
+        synchronized (this) {
+            Entry previous = entries.put(new Key(generation, clazz, id), new Entry(resource, jsonLength));
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            weight += jsonLength;
+
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (weight > maxWeight && iterator.hasNext()) {
+                weight -= iterator.next().weight;
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Discards all entries for generations older than the specified generation.
+     */
+    public synchronized void invalidateBefore(long generation) {
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Entry> entry = iterator.next();
+            if (entry.getKey().generation < generation) {
+                weight -= entry.getValue().weight;
+                iterator.remove();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceCache [size=" + size() + ", weight=" + getWeight() + ", maxWeight=" + maxWeight + ", hits="
+                + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+    }
+
+    private static final class Key {
+        private final long generation;
+        private final Class<?> clazz;
+        private final String id;
+
+        private Key(long generation, Class<?> clazz, String id) {
+            this.generation = generation;
+            this.clazz = clazz;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(generation, clazz, id);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return generation == other.generation && clazz.equals(other.clazz) && id.equals(other.id);
+        }
+    }
+
+    private static final class Entry {
+        private final IBaseResource resource;
+        private final int weight;
+
+        private Entry(IBaseResource resource, int weight) {
+            this.resource = resource;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
+
+/**
+ * In memory map between the resource type and id of each resource in an index generation and the document it is
+ * indexed as, built from the term dictionaries when the generation is opened. Reads by id look the document up here
+ * rather than running a query, and search results get the id of each document from here rather than loading it from
+ * stored fields.
+ * <p>
+ * The ids are held in primitive arrays rather than a map of boxed entries, as a hot swap briefly holds two generations'
+ * maps. The UTF-8 bytes of every id are concatenated into one array in order of resource type and then id, with the
+ * start of each id and the document it is indexed as in parallel int arrays, so an id is found by a binary search
+ * within its resource type's range. A further int array maps each document to its id.
+ * <p>
+ * The index builder rejects duplicate ids, so each resource type and id maps to a single document.
+ */
+final class ResourceIdMap {
+
+    private static final Logger logger = Logger.getLogger(ResourceIdMap.class.getCanonicalName());
+
+    private final String[] types;
+    private final int[] typeStarts;
+    private final byte[] idBytes;
+    private final int[] idStarts;
+    private final int[] docs;
+    private final int[] entriesByDoc;
+
+    private ResourceIdMap(String[] types, int[] typeStarts, byte[] idBytes, int[] idStarts, int[] docs,
+            int[] entriesByDoc) {
+        this.types = types;
+        this.typeStarts = typeStarts;
+        this.idBytes = idBytes;
+        this.idStarts = idStarts;
+        this.docs = docs;
+        this.entriesByDoc = entriesByDoc;
+    }
+
+    static ResourceIdMap build(IndexReader reader) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (LeafReaderContext leaf : reader.leaves()) {
+            addLeaf(leaf, entries);
+        }
+        entries.sort(Comparator.comparing((Entry entry) -> entry.type)
+            .thenComparing(entry -> entry.id)
+            .thenComparingInt(entry -> entry.doc));
+
+        List<String> types = new ArrayList<>();
+        List<Integer> typeStarts = new ArrayList<>();
+        int byteCount = 0;
+        for (Entry entry : entries) {
+            byteCount += entry.id.length;
+        }
+        byte[] idBytes = new byte[byteCount];
+        int[] idStarts = new int[entries.size() + 1];
+        int[] docs = new int[entries.size()];
+        int[] entriesByDoc = new int[reader.maxDoc()];
+        Arrays.fill(entriesByDoc, -1);
+
+        int count = 0;
+        int offset = 0;
+        Entry previous = null;
+        for (Entry entry : entries) {
+            if (previous != null && previous.type.equals(entry.type) && previous.id.equals(entry.id)) {
+                logger.warning("Duplicate " + entry.type + " resource with id " + entry.id.utf8ToString()
+                        + " in documents " + previous.doc + " and " + entry.doc + ", reads will return the first");
+                entriesByDoc[entry.doc] = entriesByDoc[previous.doc];
+                continue;
+            }
+            if (previous == null || !previous.type.equals(entry.type)) {
+                types.add(entry.type);
+                typeStarts.add(count);
+            }
+            System.arraycopy(entry.id.bytes, entry.id.offset, idBytes, offset, entry.id.length);
+            idStarts[count] = offset;
+            docs[count] = entry.doc;
+            entriesByDoc[entry.doc] = count;
+            offset += entry.id.length;
+            count++;
+            previous = entry;
+        }
+        idStarts[count] = offset;
+        typeStarts.add(count);
+
+        return new ResourceIdMap(types.toArray(new String[types.size()]),
+            typeStarts.stream().mapToInt(Integer::intValue).toArray(), idBytes, Arrays.copyOf(idStarts, count + 1),
+            Arrays.copyOf(docs, count), entriesByDoc);
+    }
+
+    /**
+     * @return the document the resource is indexed as, or -1 if there is no resource of the type with the id
+     */
+    int getDoc(String resourceType, String id) {
+        int type = Arrays.asList(types).indexOf(resourceType);
+        if (type < 0) {
+            return -1;
+        }
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        int low = typeStarts[type];
+        int high = typeStarts[type + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareId(mid, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return docs[mid];
+            }
+        }
+        return -1;
+    }
+
+    String getId(int doc) {
+        int entry = entriesByDoc[doc];
+        return entry < 0 ? null
+                : new String(idBytes, idStarts[entry], idStarts[entry + 1] - idStarts[entry], StandardCharsets.UTF_8);
+    }
+
+    int size() {
+        return docs.length;
+    }
+
+    /**
+     * @return how the id of the entry compares to the UTF-8 bytes of an id, in the unsigned byte order of the index's
+     *         term dictionary
+     */
+    private int compareId(int entry, byte[] key) {
+        int start = idStarts[entry];
+        int length = idStarts[entry + 1] - start;
+        for (int i = 0; i < length && i < key.length; i++) {
+            int cmp = (idBytes[start + i] & 0xff) - (key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static void addLeaf(LeafReaderContext leaf, List<Entry> entries) throws IOException {
+        LeafReader leafReader = leaf.reader();
+        Bits liveDocs = leafReader.getLiveDocs();
+
+        String[] types = new String[leafReader.maxDoc()];
+        Terms typeTerms = leafReader.terms(FieldNames.RESOURCE_TYPE);
+        if (typeTerms != null) {
+            TermsEnum terms = typeTerms.iterator();
+            PostingsEnum postings = null;
+            for (BytesRef term = terms.next(); term != null; term = terms.next()) {
+                String type = term.utf8ToString();
+                postings = terms.postings(postings, PostingsEnum.NONE);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    types[doc] = type;
+                }
+            }
+        }
+
+        Terms idTerms = leafReader.terms(FieldNames.ID);
+        if (idTerms == null) {
+            return;
+        }
+        TermsEnum terms = idTerms.iterator();
+        PostingsEnum postings = null;
+        for (BytesRef term = terms.next(); term != null; term = terms.next()) {
+            BytesRef id = BytesRef.deepCopyOf(term);
+            postings = terms.postings(postings, PostingsEnum.NONE);
+            for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                if (liveDocs == null || liveDocs.get(doc)) {
+                    // Documents with no resource type are only mapped to their id, under a type no read asks for
+                    entries.add(new Entry(types[doc] == null ? "" : types[doc], id, leaf.docBase + doc));
+                }
+            }
+        }
+    }
+
+    /**
+     * A resource's id and the document it is indexed as, collected from every leaf so they can be sorted.
+     */
+    private static final class Entry {
+        private final String type;
+        private final BytesRef id;
+        private final int doc;
+
+        private Entry(String type, BytesRef id, int doc) {
+            this.type = type;
+            this.id = id;
+            this.doc = doc;
+        }
+    }
+}
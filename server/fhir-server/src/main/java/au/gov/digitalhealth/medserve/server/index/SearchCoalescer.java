@@ -0,0 +1,124 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shares a single execution of a search between all of the identical searches that start while it is running, so a
+ * burst of the same search runs it once rather than once per request. Searches are identical if they have equal keys,
+ * which must include the index generation they run against along with everything else that determines their results.
+ * <p>
+ * Nothing is kept once an execution completes, the next search with the same key runs again. Results are handed to
+ * every search sharing the execution so must not be modified. If the execution fails every search sharing it fails.
+ * <p>
+ * Coalescing can be disabled by setting <code>search.coalesce</code> to false. How many searches ran and how many
+ * shared another's execution are counted so its effect can be monitored.
+ */
+public class SearchCoalescer {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("search.coalesce", "true"));
+
+    private final boolean enabled;
+    private final ConcurrentHashMap<Object, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * A search returning its results, which may fail reading the index.
+     */
+    @FunctionalInterface
+    public interface Search<T> {
+        T execute() throws IOException;
+    }
+
+    public SearchCoalescer() {
+        this(ENABLED);
+    }
+
+    public SearchCoalescer(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Executes the search, or if an identical search is already executing waits for and returns its results.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(Object key, Search<T> search) throws IOException {
+        if (!enabled) {
+            executions.increment();
+            return search.execute();
+        }
+
+        CompletableFuture<Object> execution = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, execution);
+        if (running != null) {
+            coalesced.increment();
+            return (T) await(running);
+        }
+
+        executions.increment();
+        try {
+            T result = search.execute();
+            execution.complete(result);
+            return result;
+        } catch (IOException | RuntimeException | Error e) {
+            execution.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, execution);
+        }
+    }
+
+    private static Object await(CompletableFuture<Object> execution) throws IOException {
+        try {
+            return execution.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for an identical search to complete");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new IOException("Identical search failed: " + cause.getMessage(), cause);
+            } else if (cause instanceof Error) {
+                throw new RuntimeException("Identical search failed", cause);
+            }
+            throw (RuntimeException) cause;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return how many searches were executed
+     */
+    public long getExecutions() {
+        return executions.sum();
+    }
+
+    /**
+     * @return how many searches shared the execution of an identical search instead of executing
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return how many searches are currently executing that others could share
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SearchCoalescer [enabled=" + enabled + ", executions=" + getExecutions() + ", coalesced="
+                + getCoalesced() + ", inFlight=" + getInFlight() + "]";
+    }
+}
@@ -0,0 +1,277 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+
+/**
+ * Optional thread pool the searchers of all index generations search their segments on concurrently. It is disabled
+ * unless <code>search.threads</code> is set above 1, in which case a search is split into slices of consecutive
+ * segments, each slice holding at least <code>search.slice.minDocs</code> documents, and at most one slice per
+ * thread.
+ * <p>
+ * The pool's queue is bounded, when it is full a slice runs on the thread searching instead, so under load searches
+ * degrade to running on their own thread rather than queueing behind each other. Searches of a single slice always
+ * run on their own thread.
+ * <p>
+ * For each search split into more than one slice the time spent searching the slices is compared with the time the
+ * search took, giving its parallelism. These, along with how often slices ran on the searching thread, are counted
+ * so the effect of the pool on latency and throughput can be monitored. Individual searches are logged at FINE.
+ */
+public class SearchExecutor implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(SearchExecutor.class.getCanonicalName());
+
+    public static final int THREADS = Integer.getInteger("search.threads", 0);
+    public static final int QUEUE_SIZE = Integer.getInteger("search.queueSize", 4 * Math.max(1, THREADS));
+    public static final int MIN_SLICE_DOCS = Integer.getInteger("search.slice.minDocs", 50_000);
+
+    private static final ThreadLocal<SearchStats> currentSearch = new ThreadLocal<>();
+
+    private final ThreadPoolExecutor pool;
+    private final ExecutorService executor;
+
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder parallelSearches = new LongAdder();
+    private final LongAdder slices = new LongAdder();
+    private final LongAdder callerRunSlices = new LongAdder();
+    private final LongAdder parallelElapsedNanos = new LongAdder();
+    private final LongAdder parallelBusyNanos = new LongAdder();
+
+    public SearchExecutor() {
+        this(THREADS, QUEUE_SIZE);
+    }
+
+    public SearchExecutor(int threads, int queueSize) {
+        if (threads <= 1) {
+            pool = null;
+            executor = null;
+            return;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+                Thread thread = new Thread(r, "index-search-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor = new MeasuringExecutorService();
+    }
+
+    public boolean isEnabled() {
+        return pool != null;
+    }
+
+    /**
+     * Creates a searcher over the reader which searches its segments on this pool if it is enabled, or a plain
+     * single threaded searcher otherwise.
+     */
+    IndexSearcher newSearcher(IndexReader reader) {
+        if (!isEnabled()) {
+            return new IndexSearcher(reader);
+        }
+        int threads = pool.getCorePoolSize();
+        return new IndexSearcher(reader, executor) {
+            @Override
+            protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+                return SearchExecutor.slices(leaves, threads, MIN_SLICE_DOCS);
+            }
+
+            @Override
+            public <C extends Collector, T> T search(Query query, CollectorManager<C, T> collectorManager)
+                    throws IOException {
+                if (getSlices().length <= 1) {
+                    searches.increment();
+                    slices.increment();
+                    C collector = collectorManager.newCollector();
+                    search(query, collector);
+                    return collectorManager.reduce(Collections.singletonList(collector));
+                }
+                SearchStats stats = new SearchStats();
+                currentSearch.set(stats);
+                try {
+                    return super.search(query, collectorManager);
+                } finally {
+                    currentSearch.remove();
+                    record(query, stats, System.nanoTime() - stats.start);
+                }
+            }
+        };
+    }
+
+    /**
+     * Groups consecutive segments into slices of at least the minimum number of documents, or of an even share of the
+     * documents between the threads if that is larger. Slices keep the segments in order so
+     * merged results tie break in index order. The segments of different shards are always in different slices, so
+     * the shards of a sharded partition are searched concurrently.
+     */
+    static IndexSearcher.LeafSlice[] slices(List<LeafReaderContext> leaves, int threads, int minSliceDocs) {
+        long totalDocs = 0;
+        for (LeafReaderContext leaf : leaves) {
+            totalDocs += leaf.reader().maxDoc();
+        }
+        long sliceDocs = Math.max(minSliceDocs, (totalDocs + threads - 1) / threads);
+
+        List<IndexSearcher.LeafSlice> result = new ArrayList<>();
+        List<LeafReaderContext> slice = new ArrayList<>();
+        long docs = 0;
+        for (LeafReaderContext leaf : leaves) {
+            if (!slice.isEmpty() && slice.get(0).parent != leaf.parent) {
+                // Shards are searched separately, so a slice never spans two
+                result.add(new IndexSearcher.LeafSlice(slice.toArray(new LeafReaderContext[slice.size()])));
+                slice.clear();
+                docs = 0;
+            }
+            slice.add(leaf);
+            docs += leaf.reader().maxDoc();
+            if (docs >= sliceDocs) {
+                result.add(new IndexSearcher.LeafSlice(slice.toArray(new LeafReaderContext[slice.size()])));
+                slice.clear();
+                docs = 0;
+            }
+        }
+        if (!slice.isEmpty()) {
+            result.add(new IndexSearcher.LeafSlice(slice.toArray(new LeafReaderContext[slice.size()])));
+        }
+        return result.toArray(new IndexSearcher.LeafSlice[result.size()]);
+    }
+
+    public long getSearchCount() {
+        return searches.sum();
+    }
+
+    public long getParallelSearchCount() {
+        return parallelSearches.sum();
+    }
+
+    public long getSliceCount() {
+        return slices.sum();
+    }
+
+    public long getCallerRunSliceCount() {
+        return callerRunSlices.sum();
+    }
+
+    /**
+     * @return the time spent searching slices divided by the elapsed time, over all searches split into more than one
+     *         slice, or 1 if there haven't been any
+     */
+    public double getParallelism() {
+        long elapsed = parallelElapsedNanos.sum();
+        return elapsed == 0 ? 1 : (double) parallelBusyNanos.sum() / elapsed;
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (!isEnabled()) {
+            return "SearchExecutor [disabled]";
+        }
+        return "SearchExecutor [threads=" + pool.getCorePoolSize() + ", queued=" + pool.getQueue().size()
+                + ", searches=" + getSearchCount() + ", parallelSearches=" + getParallelSearchCount() + ", slices="
+                + getSliceCount() + ", callerRunSlices=" + getCallerRunSliceCount() + ", parallelism="
+                + String.format("%.2f", getParallelism()) + "]";
+    }
+
+    private void record(Query query, SearchStats stats, long elapsedNanos) {
+        int sliceCount = stats.slices.get();
+        searches.increment();
+        slices.add(sliceCount);
+        callerRunSlices.add(stats.callerRunSlices.get());
+        if (sliceCount > 1) {
+            parallelSearches.increment();
+            parallelElapsedNanos.add(elapsedNanos);
+            parallelBusyNanos.add(stats.busyNanos.get());
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Searched " + query + " in " + sliceCount + " slices, " + stats.callerRunSlices.get()
+                    + " on the searching thread, elapsed " + TimeUnit.NANOSECONDS.toMicros(elapsedNanos)
+                    + "us, parallelism " + String.format("%.2f", (double) stats.busyNanos.get() / elapsedNanos));
+        }
+    }
+
+    private static final class SearchStats {
+        private final long start = System.nanoTime();
+        private final AtomicInteger slices = new AtomicInteger();
+        private final AtomicInteger callerRunSlices = new AtomicInteger();
+        private final AtomicLong busyNanos = new AtomicLong();
+    }
+
+    /**
+     * Hands the slices of a search to the pool, timing each against the search that submitted it.
+     */
+    private final class MeasuringExecutorService extends AbstractExecutorService {
+
+        @Override
+        public void execute(Runnable command) {
+            SearchStats stats = currentSearch.get();
+            if (stats == null) {
+                pool.execute(command);
+                return;
+            }
+            Thread searching = Thread.currentThread();
+            stats.slices.incrementAndGet();
+            pool.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    command.run();
+                } finally {
+                    stats.busyNanos.addAndGet(System.nanoTime() - start);
+                    if (Thread.currentThread() == searching) {
+                        stats.callerRunSlices.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            pool.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return pool.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return pool.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return pool.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return pool.awaitTermination(timeout, unit);
+        }
+    }
+}
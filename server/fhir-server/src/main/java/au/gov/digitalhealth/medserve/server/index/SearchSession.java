@@ -0,0 +1,358 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopFieldDocs;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * A search executed against the index, created once per search request and held by the bundle provider for the life
+ * of its paging. The Lucene query is built once, and a single collector pass counts the total hits and collects the
+ * ordered doc ids of the first {@link #MAX_SESSION_DOCS} results, so pages inside that window are served without
+ * searching again. Pages past the window are collected with a search-after from the cursor at the end of the
+ * preceding page.
+ * <p>
+ * The window isn't collected until it is needed. A session created to serve a page past the window, which has been
+ * given the cursor of that page, only counts the total hits and continues from the cursor, rather than collecting a
+ * window it won't serve anything from.
+ * <p>
+ * The search runs against the generation's partition for the resource type being searched for, and the doc ids it
+ * collects are numbered within that partition. Doc ids are only meaningful for the index generation they were
+ * collected from, so if the generation has been swapped since the session was created the window is collected again
+ * from the new generation.
+ * <p>
+ * Scored queries return results by score, and then in the order of the index. Queries with only filter clauses aren't
+ * scored, so against a sorted index their results are simply in index order, which lets collection stop as soon as
+ * enough results have been found. The total number of hits is then counted separately. Doc ids only follow the index
+ * order within each segment, which the index builder merges each shard of a partition down to, so against a sharded
+ * partition, or one with more than one segment such as one built before that, scored results are explicitly sorted by
+ * score and then the index sort.
+ * <p>
+ * A session with an explicit sort collects the top results by the sort's doc values instead, scored or not, with the
+ * cursors holding the sort values of the last result so later pages continue from them. Ties in the sort are broken by
+ * the index sort rather than doc id, so results are in the same order however the partition is sharded.
+ * <p>
+ * Pages can be followed by the resources they include, see {@link Inclusion}.
+ * <p>
+ * The values of facet fields can also be counted over all of the session's results, see {@link FacetCounter}.
+ * <p>
+ * Collecting the window, counting the total and counting facets are shared with identical sessions doing the same
+ * against the same generation at the same time, see {@link SearchCoalescer}.
+ * <p>
+ * All collection goes through collector managers, so searchers with a {@link SearchExecutor} collect the segments of
+ * a search concurrently and merge their results.
+ */
+public class SearchSession {
+
+    public static final int MAX_SESSION_DOCS = Math.max(1, Integer.getInteger("search.session.maxDocs", 1000));
+
+    private static final int MAX_CURSORS = 100;
+
+    private IndexGenerationManager generations;
+    private ResourceCache cache;
+    private SearchCoalescer coalescer;
+    private Class<? extends IBaseResource> clazz;
+    private String resourceType;
+    private Query query;
+    private Sort sort;
+
+    private long generation;
+    private int total = -1;
+    private ScoreDoc[] window;
+    private Map<Integer, PagingCursor> cursors = new LinkedHashMap<Integer, PagingCursor>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Entry<Integer, PagingCursor> eldest) {
+            return size() > MAX_CURSORS;
+        }
+    };
+
+    SearchSession(IndexGenerationManager generations, ResourceCache cache, SearchCoalescer coalescer,
+            Class<? extends IBaseResource> clazz, Query query, Sort sort) throws IOException {
+        this.generations = generations;
+        this.cache = cache;
+        this.coalescer = coalescer;
+        this.clazz = clazz;
+        this.resourceType = clazz.getSimpleName().replace("Extended", "").toLowerCase();
+        this.query = query;
+        this.sort = sort;
+
+        IndexGeneration indexGeneration = generations.acquire();
+        try {
+            generation = indexGeneration.getGeneration();
+        } finally {
+            generations.release(indexGeneration);
+        }
+    }
+
+    public Query getQuery() {
+        return query;
+    }
+
+    public Sort getSort() {
+        return sort;
+    }
+
+    /**
+     * @return the index generation the session's results are collected from, the current one when it was created
+     *         until a page or its size is asked for from a later one
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the total number of results, which are collected now if they haven't been yet, or only counted if the
+     *         session has a cursor to continue from
+     */
+    public synchronized int size() {
+        if (total < 0) {
+            try {
+                IndexGeneration indexGeneration = generations.acquire();
+                try {
+                    if (indexGeneration.getGeneration() != generation) {
+                        reset(indexGeneration);
+                    }
+                    if (cursors.isEmpty()) {
+                        collect(indexGeneration);
+                    } else {
+                        count(indexGeneration);
+                    }
+                } finally {
+                    generations.release(indexGeneration);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed counting results of query '" + query + "' and sort " + sort, e);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the cursor for the page of results starting at the offset, if the offset is past the window and the
+     *         page before it has been served, otherwise null as the page needs no cursor or there is none for it
+     */
+    public synchronized PagingCursor getCursor(int offset) {
+        return offset > MAX_SESSION_DOCS ? cursors.get(offset) : null;
+    }
+
+    /**
+     * Adds a cursor for the page starting at its offset, such as one passed on from the server that served the page
+     * before it, as long as it is for the generation the session's results are collected from.
+     *
+     * @return true if the cursor was added, false if it is for another generation
+     */
+    public synchronized boolean addCursor(PagingCursor cursor) {
+        if (cursor.getGeneration() != generation) {
+            return false;
+        }
+        cursors.put(cursor.getOffset(), cursor);
+        return true;
+    }
+
+    public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+        return getResources(theFromIndex, theToIndex, Collections.emptyList());
+    }
+
+    /**
+     * Gets a page of the results followed by the resources the inclusions add to it, see {@link IncludeResolver}.
+     */
+    public List<IBaseResource> getResources(int theFromIndex, int theToIndex, List<Inclusion> inclusions) {
+        try {
+            IndexGeneration indexGeneration = generations.acquire();
+            try {
+                ScoreDoc[] currentWindow;
+                PagingCursor cursor;
+                synchronized (this) {
+                    if (indexGeneration.getGeneration() != generation) {
+                        reset(indexGeneration);
+                    }
+                    cursor = cursors.get(Math.max(theFromIndex, MAX_SESSION_DOCS));
+                    // A page past the window with a cursor to continue from is served without the window
+                    if (window == null && (theFromIndex < MAX_SESSION_DOCS || cursor == null
+                        || !cursor.isValidFor(indexGeneration, theFromIndex))) {
+                        collect(indexGeneration);
+                    }
+                    currentWindow = window;
+                }
+
+                List<ScoreDoc> docs = new ArrayList<>(Math.max(0, theToIndex - theFromIndex));
+                int position = theFromIndex;
+                for (; currentWindow != null && position < theToIndex && position < currentWindow.length; position++) {
+                    docs.add(currentWindow[position]);
+                }
+
+                boolean pastWindow =
+                        position < theToIndex && (currentWindow == null || currentWindow.length == MAX_SESSION_DOCS);
+                if (pastWindow) {
+                    ScoreDoc after;
+                    int skip;
+                    if (cursor != null && cursor.isValidFor(indexGeneration, position)) {
+                        after = cursor.getAfter();
+                        skip = 0;
+                    } else {
+                        after = currentWindow[currentWindow.length - 1];
+                        skip = position - currentWindow.length;
+                    }
+                    TopDocs more = search(indexGeneration, after, skip + theToIndex - position);
+                    for (int i = skip; i < more.scoreDocs.length; i++) {
+                        docs.add(more.scoreDocs[i]);
+                    }
+                }
+
+                List<IBaseResource> result = new ArrayList<>(docs.size());
+                int docBase = indexGeneration.getPartition(resourceType).getDocBase();
+                for (ScoreDoc doc : docs) {
+                    result.add(DocumentReader.getResource(indexGeneration, docBase + doc.doc, clazz, cache));
+                }
+                if (!inclusions.isEmpty() && !docs.isEmpty()) {
+                    result.addAll(IncludeResolver.resolve(indexGeneration,
+                        indexGeneration.getPartition(resourceType), clazz, docs, inclusions));
+                }
+
+                if (pastWindow && !docs.isEmpty()) {
+                    synchronized (this) {
+                        cursors.put(theFromIndex + docs.size(), new PagingCursor(indexGeneration.getGeneration(),
+                            theFromIndex + docs.size(), docs.get(docs.size() - 1)));
+                    }
+                }
+                return result;
+            } finally {
+                generations.release(indexGeneration);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed searching index with query '" + query + "' and sort " + sort, e);
+        }
+    }
+
+    /**
+     * Counts the values of the specified facet fields over all of the results in the current index generation.
+     */
+    public Map<String, List<FacetCount>> getFacets(List<String> fields, int maxValues) {
+        try {
+            IndexGeneration indexGeneration = generations.acquire();
+            try {
+                IndexSearcher searcher = indexGeneration.getPartition(resourceType).getSearcher();
+                return coalescer.execute(
+                    Arrays.asList("facets", indexGeneration.getGeneration(), resourceType, query, fields, maxValues),
+                    () -> FacetCounter.count(searcher, query, fields, maxValues));
+            } finally {
+                generations.release(indexGeneration);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed counting facets " + fields + " of query '" + query + "'", e);
+        }
+    }
+
+    private void collect(IndexGeneration indexGeneration) throws IOException {
+        TopDocs docs = coalescer.execute(
+            Arrays.asList("window", indexGeneration.getGeneration(), resourceType, query, sort), () -> {
+                TopDocs collected = search(indexGeneration, null, MAX_SESSION_DOCS);
+                if (collected.totalHits < 0) {
+                    collected = new TopDocs(indexGeneration.getPartition(resourceType).getSearcher().count(query),
+                        collected.scoreDocs, collected.getMaxScore());
+                }
+                return collected;
+            });
+        total = (int) docs.totalHits;
+        window = docs.scoreDocs;
+    }
+
+    private void count(IndexGeneration indexGeneration) throws IOException {
+        total = coalescer.execute(Arrays.asList("count", indexGeneration.getGeneration(), resourceType, query),
+            () -> indexGeneration.getPartition(resourceType).getSearcher().count(query));
+    }
+
+    /**
+     * Discards what was collected from an earlier generation, along with the cursors into it.
+     */
+    private void reset(IndexGeneration indexGeneration) {
+        generation = indexGeneration.getGeneration();
+        total = -1;
+        window = null;
+        cursors.clear();
+    }
+
+    /**
+     * Collects the specified number of results after the specified result, or from the start if it is null. The
+     * returned total hits is -1 if collection stopped early so the total wasn't counted.
+     */
+    private TopDocs search(IndexGeneration indexGeneration, ScoreDoc after, int count) throws IOException {
+        IndexPartition partition = indexGeneration.getPartition(resourceType);
+        IndexSearcher searcher = partition.getSearcher();
+        Sort indexSort = partition.getIndexSort();
+        Sort collectionSort;
+        if (sort != null) {
+            collectionSort = indexSort == null ? sort : thenByIndexSort(sort.getSort(), indexSort);
+        } else if (!isScored(query)) {
+            collectionSort = indexSort;
+        } else if (partition.getReader().leaves().size() > 1 && indexSort != null) {
+            // Doc ids only follow the index sort within each segment, so ties in score are broken by the sort itself
+            collectionSort = thenByIndexSort(new SortField[] { SortField.FIELD_SCORE }, indexSort);
+        } else {
+            collectionSort = null;
+        }
+        if (collectionSort == null) {
+            return after == null ? searcher.search(query, count) : searcher.searchAfter(after, query, count);
+        }
+
+        // Only collection in index order can stop early, any other sort has to see every hit
+        boolean inIndexOrder = collectionSort.equals(indexSort);
+        TopFieldDocs docs = searcher.search(query, new CollectorManager<TopFieldCollector, TopFieldDocs>() {
+            @Override
+            public TopFieldCollector newCollector() throws IOException {
+                return TopFieldCollector.create(collectionSort, count, (FieldDoc) after, true, false, false,
+                    !inIndexOrder);
+            }
+
+            @Override
+            public TopFieldDocs reduce(Collection<TopFieldCollector> collectors) throws IOException {
+                TopFieldDocs[] sliceDocs = new TopFieldDocs[collectors.size()];
+                int i = 0;
+                for (TopFieldCollector collector : collectors) {
+                    sliceDocs[i++] = collector.topDocs();
+                }
+                return TopDocs.merge(collectionSort, count, sliceDocs);
+            }
+        });
+        return inIndexOrder ? new TopDocs(-1, docs.scoreDocs, docs.getMaxScore()) : docs;
+    }
+
+    private static Sort thenByIndexSort(SortField[] fields, Sort indexSort) {
+        SortField[] sortFields = Arrays.copyOf(fields, fields.length + indexSort.getSort().length);
+        System.arraycopy(indexSort.getSort(), 0, sortFields, fields.length, indexSort.getSort().length);
+        return new Sort(sortFields);
+    }
+
+    private static boolean isScored(Query query) {
+        if (!(query instanceof BooleanQuery)) {
+            return true;
+        }
+        for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+            if (clause.isScoring()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,56 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
+
+/**
+ * Matches resources with a coding of the code in any code system. Against index generations with the code only
+ * <code>&lt;field&gt;{@value FieldNames#SYSTEMLESS_CODE_SUFFIX}</code> field it is rewritten to a lookup of the single
+ * term for the code. Generations built before that field was added only have the <code>code|system</code> terms, so
+ * it is rewritten to a {@link PrefixQuery} over those instead.
+ */
+final class SystemlessCodeQuery extends Query {
+
+    private final String field;
+    private final String code;
+
+    SystemlessCodeQuery(String field, String code) {
+        this.field = field;
+        this.code = code;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        String systemlessField = field + FieldNames.SYSTEMLESS_CODE_SUFFIX;
+        for (LeafReaderContext leaf : reader.leaves()) {
+            if (leaf.reader().getFieldInfos().fieldInfo(systemlessField) != null) {
+                return new TermQuery(new Term(systemlessField, code));
+            }
+        }
+        return new PrefixQuery(new Term(field, code + "|"));
+    }
+
+    @Override
+    public String toString(String field) {
+        return this.field + ":" + code + "|*";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) && field.equals(((SystemlessCodeQuery) other).field)
+                && code.equals(((SystemlessCodeQuery) other).code);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * classHash() + field.hashCode()) + code.hashCode();
+    }
+}
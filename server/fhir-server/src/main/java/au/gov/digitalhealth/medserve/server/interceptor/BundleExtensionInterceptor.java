@@ -0,0 +1,45 @@
+package au.gov.digitalhealth.medserve.server.interceptor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Extension;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+
+/**
+ * Adds extensions a resource provider computed while handling a search to the Bundle HAPI builds for the response,
+ * which the provider has no other way of reaching. A DSTU3 Bundle can't have extensions itself, so they are added to
+ * its meta. HAPI passes responses through interceptors in the reverse of the order they were registered, so this
+ * must be registered after {@link PassThroughInterceptor} to add the extensions before the Bundle is written.
+ */
+public class BundleExtensionInterceptor extends InterceptorAdapter {
+
+    private static final String EXTENSIONS_KEY = BundleExtensionInterceptor.class.getName() + ".extensions";
+
+    /**
+     * Adds the extension to the meta of the response Bundle of the request.
+     */
+    @SuppressWarnings("unchecked")
+    public static void addExtension(RequestDetails theRequestDetails, Extension extension) {
+        ((List<Extension>) theRequestDetails.getUserData().computeIfAbsent(EXTENSIONS_KEY, k -> new ArrayList<>()))
+            .add(extension);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean outgoingResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails,
+            HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) {
+        List<Extension> extensions = (List<Extension>) theRequestDetails.getUserData().get(EXTENSIONS_KEY);
+        if (extensions != null && theResponseDetails.getResponseResource() instanceof Bundle) {
+            ((Bundle) theResponseDetails.getResponseResource()).getMeta().getExtension().addAll(extensions);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,60 @@
+package au.gov.digitalhealth.medserve.server.interceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleLinkComponent;
+
+import au.gov.digitalhealth.medserve.server.bundleprovider.SignedPagingProvider;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Adds the cursor of the page each next and previous link of a search's Bundle is for to the link, see
+ * {@link SignedPagingProvider}, as HAPI links every page of a search with the same id. HAPI passes responses through
+ * interceptors in the reverse of the order they were registered, so this must be registered after
+ * {@link PassThroughInterceptor} to change the links before the Bundle is written.
+ */
+public class PageLinkInterceptor extends InterceptorAdapter {
+
+    private SignedPagingProvider pagingProvider;
+
+    public PageLinkInterceptor(SignedPagingProvider pagingProvider) {
+        this.pagingProvider = pagingProvider;
+    }
+
+    @Override
+    public boolean outgoingResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails,
+            HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) {
+        try {
+            if (theResponseDetails.getResponseResource() instanceof Bundle) {
+                for (BundleLinkComponent link : ((Bundle) theResponseDetails.getResponseResource()).getLink()) {
+                    if (Constants.LINK_NEXT.equals(link.getRelation())
+                            || Constants.LINK_PREVIOUS.equals(link.getRelation())) {
+                        link.setUrl(pagingProvider.addCursor(link.getUrl()));
+                    }
+                }
+            }
+        } finally {
+            pagingProvider.clear();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean handleException(RequestDetails theRequestDetails, BaseServerResponseException theException,
+            HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) {
+        pagingProvider.clear();
+        return true;
+    }
+
+    @Override
+    public void processingCompletedNormally(ServletRequestDetails theRequestDetails) {
+        pagingProvider.clear();
+    }
+}
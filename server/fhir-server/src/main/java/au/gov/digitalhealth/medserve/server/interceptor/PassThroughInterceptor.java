@@ -0,0 +1,323 @@
+package au.gov.digitalhealth.medserve.server.interceptor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Meta;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import au.gov.digitalhealth.medserve.server.index.PassThrough;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.ETagSupportEnum;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.RestfulServerUtils.ResponseEncoding;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.DateUtils;
+
+/**
+ * Serves reads and searches straight from the JSON stored in the index when the response needs no projection or
+ * content negotiation, i.e. JSON with no _summary, _elements or _narrative. Such requests run with
+ * {@link PassThrough} enabled, so the index returns placeholders for the stored JSON, and this interceptor writes the
+ * response from those instead of HAPI encoding parsed resources.
+ * <p>
+ * A search's Bundle is streamed, each entry's JSON being loaded from the index only as it is written, so no more than
+ * one entry is held in memory at a time. Compact JSON is copied byte for byte, pretty printed JSON is reformatted a
+ * token at a time as it is copied.
+ */
+public class PassThroughInterceptor extends InterceptorAdapter {
+
+    private static final Set<RestOperationTypeEnum> PASS_THROUGH_OPERATIONS =
+            EnumSet.of(RestOperationTypeEnum.READ, RestOperationTypeEnum.SEARCH_TYPE, RestOperationTypeEnum.GET_PAGE);
+
+    private static final String[] PROJECTION_PARAMETERS =
+            { Constants.PARAM_SUMMARY, Constants.PARAM_ELEMENTS, Constants.PARAM_NARRATIVE };
+
+    private Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+    @Override
+    public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletRequest theRequest,
+            HttpServletResponse theResponse) {
+        PassThrough.setEnabled(isPassThroughRequest(theRequestDetails));
+        return true;
+    }
+
+    @Override
+    public boolean outgoingResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails,
+            HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) {
+        if (!PassThrough.isEnabled()) {
+            return true;
+        }
+
+        IBaseResource resource = theResponseDetails.getResponseResource();
+        boolean pretty = RestfulServerUtils.prettyPrintResponse(theRequestDetails.getServer(), theRequestDetails);
+        try {
+            if (PassThrough.isPlaceholder(resource)) {
+                ByteBuffer json = PassThrough.getJson(resource);
+                Meta meta = PassThrough.readMeta(json.duplicate());
+                ((Resource) resource).getMeta().setVersionId(meta.getVersionId())
+                    .setLastUpdatedElement(meta.getLastUpdatedElement());
+                addResourceHeaders(theRequestDetails, theServletResponse, (Resource) resource);
+                try (OutputStream out = openStream(theRequestDetails, theServletResponse,
+                    theResponseDetails.getResponseCode())) {
+                    JsonWriter writer = createWriter(out, pretty);
+                    writeResource(json, writer, out, pretty);
+                    writer.flush();
+                }
+                return false;
+            } else if (resource instanceof Bundle && isPlaceholderBundle((Bundle) resource)) {
+                addServerHeaders(theRequestDetails, theServletResponse);
+                try (OutputStream out = openStream(theRequestDetails, theServletResponse,
+                    theResponseDetails.getResponseCode())) {
+                    writeBundle(theRequestDetails.getServer().getFhirContext(), (Bundle) resource, out, pretty);
+                }
+                return false;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed writing pass-through response", e);
+        } finally {
+            // Placeholders' JSON has been written, or HAPI is left to write a response without any
+            PassThrough.clear();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean handleException(RequestDetails theRequestDetails, BaseServerResponseException theException,
+            HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) {
+        PassThrough.clear();
+        return true;
+    }
+
+    @Override
+    public void processingCompletedNormally(ServletRequestDetails theRequestDetails) {
+        PassThrough.clear();
+    }
+
+    private boolean isPassThroughRequest(RequestDetails theRequestDetails) {
+        if (!PASS_THROUGH_OPERATIONS.contains(theRequestDetails.getRestOperationType())) {
+            return false;
+        }
+
+        Map<String, String[]> parameters = theRequestDetails.getParameters();
+        for (String parameter : PROJECTION_PARAMETERS) {
+            if (parameters.containsKey(parameter)) {
+                return false;
+            }
+        }
+
+        ResponseEncoding encoding = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails);
+        return encoding.getEncoding() == EncodingEnum.JSON;
+    }
+
+    private boolean isPlaceholderBundle(Bundle bundle) {
+        for (BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.hasResource() && !PassThrough.isPlaceholder(entry.getResource())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the headers HAPI adds to the response to a read, which it doesn't get to write when the stored JSON is
+     * passed through.
+     */
+    private void addResourceHeaders(RequestDetails theRequestDetails, HttpServletResponse theServletResponse,
+            Resource resource) {
+        addServerHeaders(theRequestDetails, theServletResponse);
+        IdType id = new IdType(theRequestDetails.getFhirServerBase(), resource.fhirType(), resource.getIdElement()
+            .getIdPart(), resource.getMeta().getVersionId());
+        theServletResponse.addHeader(Constants.HEADER_CONTENT_LOCATION, id.getValue());
+        if (id.hasVersionIdPart() && theRequestDetails.getServer().getETagSupport() == ETagSupportEnum.ENABLED) {
+            theServletResponse.addHeader(Constants.HEADER_ETAG, "W/\"" + id.getVersionIdPart() + '"');
+        }
+        if (resource.getMeta().getLastUpdated() != null) {
+            theServletResponse.addHeader(Constants.HEADER_LAST_MODIFIED,
+                DateUtils.formatDate(resource.getMeta().getLastUpdated()));
+        }
+    }
+
+    private void addServerHeaders(RequestDetails theRequestDetails, HttpServletResponse theServletResponse) {
+        if (theRequestDetails.getServer() instanceof RestfulServer) {
+            ((RestfulServer) theRequestDetails.getServer()).addHeadersToResponse(theServletResponse);
+        }
+    }
+
+    private OutputStream openStream(RequestDetails theRequestDetails, HttpServletResponse theServletResponse,
+            int status) throws IOException {
+        ResponseEncoding encoding = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails);
+        theServletResponse.setStatus(status);
+        theServletResponse.setContentType(encoding.getResourceContentType() + Constants.CHARSET_UTF8_CTSUFFIX);
+        OutputStream out = theServletResponse.getOutputStream();
+        if (theRequestDetails.isRespondGzip()) {
+            theServletResponse.addHeader(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
+            out = new GZIPOutputStream(out);
+        }
+        return out;
+    }
+
+    private JsonWriter createWriter(OutputStream out, boolean pretty) {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, Constants.CHARSET_UTF8));
+        if (pretty) {
+            writer.setIndent("  ");
+        }
+        return writer;
+    }
+
+    /**
+     * Writes a resource's stored JSON as the next value of the writer. Compact JSON is written straight to the
+     * underlying stream, pretty printed JSON is copied through the writer so it is indented to match the rest of the
+     * response.
+     */
+    private void writeResource(ByteBuffer json, JsonWriter writer, OutputStream out, boolean pretty)
+            throws IOException {
+        if (pretty) {
+            copy(new JsonReader(new StringReader(StandardCharsets.UTF_8.decode(json).toString())), writer);
+        } else {
+            // An empty raw value has the writer emit any separator, the JSON bytes are then written straight to the
+            // underlying stream in its place
+            writer.jsonValue("");
+            writer.flush();
+            Channels.newChannel(out).write(json);
+        }
+    }
+
+    private void copy(JsonReader reader, JsonWriter writer) throws IOException {
+        int depth = 0;
+        do {
+            switch (reader.peek()) {
+                case BEGIN_OBJECT:
+                    reader.beginObject();
+                    writer.beginObject();
+                    depth++;
+                    break;
+                case END_OBJECT:
+                    reader.endObject();
+                    writer.endObject();
+                    depth--;
+                    break;
+                case BEGIN_ARRAY:
+                    reader.beginArray();
+                    writer.beginArray();
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    reader.endArray();
+                    writer.endArray();
+                    depth--;
+                    break;
+                case NAME:
+                    writer.name(reader.nextName());
+                    break;
+                case STRING:
+                    writer.value(reader.nextString());
+                    break;
+                case NUMBER:
+                    // Written as it was read so the number's precision is kept
+                    writer.jsonValue(reader.nextString());
+                    break;
+                case BOOLEAN:
+                    writer.value(reader.nextBoolean());
+                    break;
+                case NULL:
+                    reader.nextNull();
+                    writer.nullValue();
+                    break;
+                default:
+                    throw new IOException("Unexpected " + reader.peek() + " in stored JSON");
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * Writes the Bundle with the stored JSON of each entry's placeholder spliced in as the entry's resource. The rest
+     * of the Bundle is small, so it is encoded by HAPI with the entry resources removed and copied across. Each
+     * entry's JSON is only loaded as the entry is written.
+     */
+    private void writeBundle(FhirContext context, Bundle bundle, OutputStream out, boolean pretty)
+            throws IOException {
+        List<IBaseResource> entryResources = new ArrayList<>(bundle.getEntry().size());
+        for (BundleEntryComponent entry : bundle.getEntry()) {
+            entryResources.add(entry.getResource());
+            entry.setResource(null);
+        }
+
+        JsonObject envelope = new JsonParser()
+            .parse(context.newJsonParser().encodeResourceToString(bundle))
+            .getAsJsonObject();
+
+        JsonWriter writer = createWriter(out, pretty);
+        writer.beginObject();
+        for (Map.Entry<String, JsonElement> member : envelope.entrySet()) {
+            writer.name(member.getKey());
+            if (member.getKey().equals("entry")) {
+                writer.beginArray();
+                int i = 0;
+                for (JsonElement entry : member.getValue().getAsJsonArray()) {
+                    writeEntry(entry.getAsJsonObject(), entryResources.get(i++), writer, out, pretty);
+                }
+                writer.endArray();
+            } else {
+                gson.toJson(member.getValue(), writer);
+            }
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    private void writeEntry(JsonObject entry, IBaseResource resource, JsonWriter writer, OutputStream out,
+            boolean pretty) throws IOException {
+        writer.beginObject();
+        if (entry.has("fullUrl")) {
+            writer.name("fullUrl");
+            gson.toJson(entry.get("fullUrl"), writer);
+        }
+        if (resource != null) {
+            writer.name("resource");
+            writeResource(PassThrough.getJson(resource), writer, out, pretty);
+        }
+        for (Map.Entry<String, JsonElement> member : entry.entrySet()) {
+            if (!member.getKey().equals("fullUrl")) {
+                writer.name(member.getKey());
+                gson.toJson(member.getValue(), writer);
+            }
+        }
+        writer.endObject();
+        // Flushed so each entry reaches the client as it is written rather than the whole page being buffered
+        writer.flush();
+    }
+}
@@ -0,0 +1,533 @@
+package au.gov.digitalhealth.medserve.server.interceptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.hl7.fhir.dstu3.model.Meta;
+
+import au.gov.digitalhealth.medserve.server.index.Index;
+import au.gov.digitalhealth.medserve.server.index.IndexGeneration;
+import au.gov.digitalhealth.medserve.server.indexbuilder.constants.IndexFiles;
+import au.gov.digitalhealth.medserve.server.resourceprovider.SearchParameters;
+import ca.uhn.fhir.rest.api.Constants;
+
+/**
+ * Caches the responses to GET requests for the index generation they were served from, answering repeats of a request
+ * from the cache and conditional requests for a response the client already has with 304 Not Modified.
+ * <p>
+ * Responses are cached by the request URL with its parameters in a normalised order, along with the request headers
+ * that determine the encoding of the response and its CORS headers. Every successful response has an ETag and a
+ * Last-Modified time known before the response is written, so the response streams to the client as it is written and
+ * is copied into the cache on the way.
+ * <p>
+ * A read's validators are those of the resource, the same as HAPI sets from its meta, <code>W/"versionId"</code> and
+ * its lastUpdated time, or where the resource's meta doesn't have them its last modified date, see
+ * {@link IndexGeneration#getMeta(int)}. A resource that is unchanged in a new index generation keeps its validators,
+ * so clients aren't sent it again after every release. Any other response, such as a search, can change with every
+ * generation, so its ETag is made of the generation and a digest of the cache key, and its Last-Modified time is when
+ * the generation was committed. ETags are weak as the bytes of a response can differ while it means the same thing, a
+ * resource read as JSON or XML, or a search Bundle with a new id each time for instance.
+ * <p>
+ * <code>If-None-Match</code> is answered from the ETag, whether or not the response is cached, as the client can only
+ * have been sent the ETag with a successful response. Without one <code>If-Modified-Since</code> is answered from the
+ * Last-Modified time of a read of a resource that exists, or of a cached response. There is nothing to invalidate
+ * within a generation, and the whole cache is cleared as soon as a request sees a newer generation.
+ * <p>
+ * Only successful responses of at most <code>response.cache.maxEntryBytes</code> are cached, the copy of a larger
+ * response is dropped once it passes that size. The cache holds at most <code>response.cache.maxBytes</code> of
+ * response bodies, evicting the least recently used.
+ */
+public class ResponseCacheFilter implements Filter {
+
+    private static final Logger logger = Logger.getLogger(ResponseCacheFilter.class.getCanonicalName());
+
+    public static final long MAX_BYTES = Long.getLong("response.cache.maxBytes", 64L * 1024 * 1024);
+    public static final int MAX_ENTRY_BYTES = Integer.getInteger("response.cache.maxEntryBytes", 1024 * 1024);
+    public static final String CACHE_CONTROL = System.getProperty("response.cache.control", "no-cache");
+
+    private static final List<String> KEY_HEADERS = Arrays.asList(Constants.HEADER_ACCEPT,
+        Constants.HEADER_ACCEPT_ENCODING, Constants.HEADER_PREFER, "Origin");
+
+    private final Index index;
+    private final LinkedHashMap<String, CachedResponse> responses = new LinkedHashMap<>(256, 0.75f, true);
+    private long generation = -1;
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ResponseCacheFilter(Index index) {
+        this.index = index;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        // nothing to configure
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        if (MAX_BYTES <= 0 || !"GET".equals(httpRequest.getMethod())) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        String key = getKey(httpRequest);
+        IndexGeneration generation = index.acquire();
+        long requestGeneration;
+        Validators readValidators;
+        Validators validators;
+        try {
+            requestGeneration = generation.getGeneration();
+            readValidators = getReadValidators(httpRequest, generation);
+            validators = readValidators != null ? readValidators
+                    : new Validators(getETag(requestGeneration, key), generation.getLastModified() / 1000 * 1000);
+        } finally {
+            index.release(generation);
+        }
+        if (matchesETag(httpRequest, validators)
+                || (readValidators != null && !isModifiedSince(httpRequest, readValidators))) {
+            notModified.increment();
+            writeNotModified(httpResponse, validators);
+            return;
+        }
+        CachedResponse cached = get(requestGeneration, key);
+        if (cached != null) {
+            if (isModifiedSince(httpRequest, cached.validators)) {
+                hits.increment();
+                writeHeaders(httpResponse, cached);
+                writeBody(httpResponse, cached);
+            } else {
+                notModified.increment();
+                writeNotModified(httpResponse, cached.validators);
+            }
+            return;
+        }
+
+        misses.increment();
+        CapturingResponse capturing = new CapturingResponse(httpResponse, validators);
+        chain.doFilter(request, capturing);
+        capturing.flushBuffer();
+        if (capturing.getStatus() == HttpServletResponse.SC_OK && capturing.isCaptured()
+                && index.getGeneration() == requestGeneration) {
+            put(requestGeneration, key, validators, capturing);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        clear();
+    }
+
+    /**
+     * Discards all cached responses.
+     */
+    public synchronized void clear() {
+        responses.clear();
+        bytes = 0;
+    }
+
+    private synchronized CachedResponse get(long requestGeneration, String key) {
+        if (requestGeneration != generation) {
+            logger.info("Clearing responses cached before index generation " + requestGeneration + " " + this);
+            clear();
+            generation = requestGeneration;
+        }
+        return responses.get(key);
+    }
+
+    private synchronized void put(long requestGeneration, String key, Validators validators,
+            CapturingResponse captured) {
+        if (requestGeneration != generation) {
+            return;
+        }
+        CachedResponse response = new CachedResponse(validators, captured.getContentType(), captured.getHeaders(),
+            captured.getCaptured());
+        CachedResponse replaced = responses.put(key, response);
+        if (replaced != null) {
+            bytes -= replaced.body.length;
+        }
+        bytes += response.body.length;
+        Iterator<CachedResponse> iterator = responses.values().iterator();
+        while (bytes > MAX_BYTES && iterator.hasNext()) {
+            bytes -= iterator.next().body.length;
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * @return the key of the request, which has its parameters sorted by name but keeps the order of each parameter's
+     *         values, as the order of the <code>_sort</code> values is the order results are sorted in
+     */
+    private static String getKey(HttpServletRequest request) {
+        StringBuilder key = new StringBuilder(request.getRequestURL()).append('?');
+        String query = request.getQueryString();
+        Map<String, String[]> parameters =
+                query == null ? Collections.emptyMap() : SearchParameters.parseQueryString(query);
+        for (Map.Entry<String, String[]> parameter : new TreeMap<>(parameters).entrySet()) {
+            for (String value : parameter.getValue()) {
+                key.append(parameter.getKey()).append('=').append(value).append('&');
+            }
+        }
+        for (String header : KEY_HEADERS) {
+            key.append('\n').append(header).append(':');
+            for (String value : Collections.list(request.getHeaders(header))) {
+                key.append(value).append(',');
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the validators of the resource the request reads, or null if the request isn't a read of a resource
+     *         that exists and has a version
+     */
+    private static Validators getReadValidators(HttpServletRequest request, IndexGeneration generation)
+            throws IOException {
+        String pathInfo = request.getPathInfo();
+        String[] path = pathInfo == null ? new String[0] : pathInfo.substring(1).split("/");
+        if (path.length != 2 || path[0].isEmpty()) {
+            return null;
+        }
+        String partition = path[0].toLowerCase();
+        if (!IndexFiles.PARTITIONS.contains(partition)
+                || !path[0].equals(Character.toUpperCase(partition.charAt(0)) + partition.substring(1))) {
+            return null;
+        }
+        int doc = generation.getDoc(partition, path[1]);
+        if (doc < 0) {
+            return null;
+        }
+        Meta meta = generation.getMeta(doc);
+        if (!meta.hasVersionId()) {
+            return null;
+        }
+        long lastModified = meta.hasLastUpdated() ? meta.getLastUpdated().getTime() : generation.getLastModified();
+        return new Validators("W/\"" + meta.getVersionId() + '"', lastModified / 1000 * 1000);
+    }
+
+    private static String getETag(long generation, String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return "W/\"" + generation + "-" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not supported", e);
+        }
+    }
+
+    /**
+     * @return true if the request's <code>If-None-Match</code> has the response's ETag, compared weakly
+     */
+    private static boolean matchesETag(HttpServletRequest request, Validators validators) {
+        String ifNoneMatch = request.getHeader(Constants.HEADER_IF_NONE_MATCH_LC);
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaqueTag = validators.eTag.substring(2);
+        for (String eTag : ifNoneMatch.split(",")) {
+            eTag = eTag.trim();
+            if (eTag.startsWith("W/")) {
+                eTag = eTag.substring(2);
+            }
+            if (eTag.equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the request has no <code>If-None-Match</code> and an <code>If-Modified-Since</code> no earlier
+     *         than the response's Last-Modified time, otherwise true
+     */
+    private static boolean isModifiedSince(HttpServletRequest request, Validators validators) {
+        if (request.getHeader(Constants.HEADER_IF_NONE_MATCH_LC) != null) {
+            return true;
+        }
+        try {
+            long ifModifiedSince = request.getDateHeader(Constants.HEADER_IF_MODIFIED_SINCE_LC);
+            return ifModifiedSince < 0 || validators.lastModified > ifModifiedSince;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    private static void writeNotModified(HttpServletResponse response, Validators validators) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        writeValidators(response, validators);
+    }
+
+    private static void writeHeaders(HttpServletResponse response, CachedResponse cached) {
+        response.setStatus(HttpServletResponse.SC_OK);
+        for (Map.Entry<String, List<String>> header : cached.headers.entrySet()) {
+            for (String value : header.getValue()) {
+                response.addHeader(header.getKey(), value);
+            }
+        }
+        if (cached.contentType != null) {
+            response.setContentType(cached.contentType);
+        }
+        writeValidators(response, cached.validators);
+    }
+
+    private static void writeBody(HttpServletResponse response, CachedResponse cached) throws IOException {
+        response.setContentLength(cached.body.length);
+        response.getOutputStream().write(cached.body);
+    }
+
+    private static void writeValidators(HttpServletResponse response, Validators validators) {
+        response.setHeader(Constants.HEADER_ETAG, validators.eTag);
+        response.setDateHeader(Constants.HEADER_LAST_MODIFIED, validators.lastModified);
+        if (!CACHE_CONTROL.isEmpty()) {
+            response.setHeader(Constants.HEADER_CACHE_CONTROL, CACHE_CONTROL);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return how many requests were answered with 304 Not Modified
+     */
+    public long getNotModified() {
+        return notModified.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResponseCacheFilter [generation=" + generation + ", size=" + responses.size() + ", bytes=" + bytes
+                + ", maxBytes=" + MAX_BYTES + ", hits=" + getHits() + ", notModified=" + getNotModified()
+                + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+    }
+
+    /**
+     * The ETag and Last-Modified time of a response.
+     */
+    private static final class Validators {
+        private final String eTag;
+        private final long lastModified;
+
+        private Validators(String eTag, long lastModified) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static final class CachedResponse {
+        private final Validators validators;
+        private final String contentType;
+        private final Map<String, List<String>> headers;
+        private final byte[] body;
+
+        private CachedResponse(Validators validators, String contentType, Map<String, List<String>> headers,
+                byte[] body) {
+            this.validators = validators;
+            this.contentType = contentType;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Passes the body and headers of a response through to the wrapped response while keeping a copy of them, up to
+     * {@link ResponseCacheFilter#MAX_ENTRY_BYTES} of body after which the copy is dropped. The validators are set on
+     * the wrapped response before the first byte of a successful body is written.
+     */
+    private static final class CapturingResponse extends HttpServletResponseWrapper {
+        private final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        private final Map<String, List<String>> headers = new LinkedHashMap<>();
+        private final Validators validators;
+        private boolean overflowed;
+        private boolean validated;
+        private ServletOutputStream target;
+        private ServletOutputStream outputStream;
+        private PrintWriter writer;
+
+        private CapturingResponse(HttpServletResponse response, Validators validators) {
+            super(response);
+            this.validators = validators;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called for this response");
+            }
+            if (outputStream == null) {
+                outputStream = new CapturingOutputStream();
+            }
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (outputStream != null) {
+                throw new IllegalStateException("getOutputStream() has already been called for this response");
+            }
+            if (writer == null) {
+                String encoding = getCharacterEncoding();
+                writer = new PrintWriter(new OutputStreamWriter(new CapturingOutputStream(),
+                    encoding == null ? StandardCharsets.ISO_8859_1.name() : encoding));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            validate();
+            super.flushBuffer();
+        }
+
+        @Override
+        public void resetBuffer() {
+            captured.reset();
+            super.resetBuffer();
+        }
+
+        @Override
+        public void reset() {
+            captured.reset();
+            headers.clear();
+            validated = false;
+            super.reset();
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            super.setHeader(name, value);
+            headers.put(name, new ArrayList<>(Collections.singletonList(value)));
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            super.addHeader(name, value);
+            headers.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+            // Not replayed, the only date header cached responses need is their Last-Modified
+            super.setDateHeader(name, date);
+            headers.remove(name);
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            setHeader(name, Integer.toString(value));
+        }
+
+        /**
+         * @return true if the whole body was copied
+         */
+        private boolean isCaptured() {
+            return !overflowed;
+        }
+
+        private byte[] getCaptured() {
+            return captured.toByteArray();
+        }
+
+        private Map<String, List<String>> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * Sets the validators on a successful response, unless they already are or its headers have been sent.
+         */
+        private void validate() {
+            if (!validated && getStatus() == HttpServletResponse.SC_OK && !isCommitted()) {
+                writeValidators((HttpServletResponse) getResponse(), validators);
+                validated = true;
+            }
+        }
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            if (target == null) {
+                validate();
+                target = getResponse().getOutputStream();
+            }
+            target.write(b, off, len);
+            if (!overflowed && captured.size() + len > MAX_ENTRY_BYTES) {
+                overflowed = true;
+                captured.reset();
+            } else if (!overflowed) {
+                captured.write(b, off, len);
+            }
+        }
+
+        private final class CapturingOutputStream extends ServletOutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                CapturingResponse.this.write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                CapturingResponse.this.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (target != null) {
+                    target.flush();
+                }
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                throw new UnsupportedOperationException("Responses are written synchronously");
+            }
+        }
+    }
+}
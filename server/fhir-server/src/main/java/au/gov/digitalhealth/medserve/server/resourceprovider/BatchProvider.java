@@ -0,0 +1,251 @@
+package au.gov.digitalhealth.medserve.server.resourceprovider;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.dstu3.model.BaseResource;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.Bundle.BundleType;
+import org.hl7.fhir.dstu3.model.Bundle.HTTPVerb;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.dstu3.model.OperationOutcome.IssueType;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.Substance;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import au.gov.digitalhealth.medserve.extension.ExtendedMedication;
+import au.gov.digitalhealth.medserve.server.Util;
+import au.gov.digitalhealth.medserve.server.index.Index;
+import au.gov.digitalhealth.medserve.server.index.SearchSession;
+import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.Transaction;
+import ca.uhn.fhir.rest.annotation.TransactionParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.DateAndListParam;
+import ca.uhn.fhir.rest.param.StringAndListParam;
+import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.TokenAndListParam;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.MethodNotAllowedException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/**
+ * Handles batch Bundles of GET entries, so a client looking up many codes or ids can send them in one request. Each
+ * entry is either a read, <code>Medication/123</code>, or a search of a resource type with the parameters its search
+ * supports out of {@value IAnyResource#SP_RES_ID}, code, _text, status, last-modified and _count, see
+ * {@link #SEARCH_PARAMETERS}. A search entry's response is a searchset Bundle of its first _count results, without
+ * paging links.
+ * <p>
+ * Entries are executed concurrently on a pool of <code>batch.threads</code> threads, its queue bounded to
+ * <code>batch.queueSize</code> entries, beyond which entries run on the thread handling the request. Each entry
+ * succeeds or fails on its own, failures being returned as the entry's response status and an OperationOutcome.
+ * Entries submitted once the pool has been shut down fail with 503 Service Unavailable.
+ */
+public class BatchProvider implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(BatchProvider.class.getCanonicalName());
+
+    public static final int THREADS =
+            Integer.getInteger("batch.threads", Runtime.getRuntime().availableProcessors());
+    public static final int QUEUE_SIZE = Integer.getInteger("batch.queueSize", 4 * Math.max(1, THREADS));
+    public static final int MAX_ENTRIES = Integer.getInteger("batch.maxEntries", 1000);
+
+    private static final Map<String, Class<? extends BaseResource>> RESOURCE_CLASSES = new HashMap<>();
+
+    /**
+     * The parameters a batch search of each resource type supports, those its resource provider's search supports
+     * that the batch search handles.
+     */
+    private static final Map<String, List<String>> SEARCH_PARAMETERS = new HashMap<>();
+
+    static {
+        RESOURCE_CLASSES.put("Medication", ExtendedMedication.class);
+        RESOURCE_CLASSES.put("Substance", Substance.class);
+        RESOURCE_CLASSES.put("Organization", Organization.class);
+
+        List<String> coded = Arrays.asList(IAnyResource.SP_RES_ID, ExtendedMedication.SP_CODE, Constants.PARAM_TEXT,
+            ExtendedMedication.SP_STATUS, FieldNames.LAST_MODIFIED, Constants.PARAM_COUNT);
+        SEARCH_PARAMETERS.put("Medication", coded);
+        SEARCH_PARAMETERS.put("Substance", coded);
+        SEARCH_PARAMETERS.put("Organization",
+            Arrays.asList(IAnyResource.SP_RES_ID, Constants.PARAM_TEXT, Constants.PARAM_COUNT));
+    }
+
+    private Index index;
+    private FhirContext context;
+    private ThreadPoolExecutor pool;
+
+    public BatchProvider(Index index, FhirContext context) {
+        this.index = index;
+        this.context = context;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(Math.max(1, THREADS), Math.max(1, THREADS), 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, QUEUE_SIZE)), r -> {
+                Thread thread = new Thread(r, "batch-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @Transaction
+    public Bundle batch(@TransactionParam Bundle theInput, RequestDetails theRequestDetails) {
+        if (theInput.getType() != BundleType.BATCH) {
+            throw new InvalidRequestException("Only batch Bundles are supported, not " + theInput.getType());
+        }
+        if (theInput.getEntry().size() > MAX_ENTRIES) {
+            throw new InvalidRequestException(
+                "Batch has " + theInput.getEntry().size() + " entries, at most " + MAX_ENTRIES + " are supported");
+        }
+
+        List<Future<BundleEntryComponent>> responses = new ArrayList<>(theInput.getEntry().size());
+        for (BundleEntryComponent entry : theInput.getEntry()) {
+            Callable<BundleEntryComponent> task = () -> execute(entry, theRequestDetails.getFhirServerBase());
+            try {
+                responses.add(pool.submit(task));
+            } catch (RejectedExecutionException e) {
+                if (pool.isShutdown()) {
+                    responses.add(CompletableFuture.completedFuture(createErrorEntry(
+                        HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server is shutting down, entry not executed")));
+                } else {
+                    // The queue is full, so the entry runs on this thread, holding back the rest of the batch
+                    responses.add(CompletableFuture.completedFuture(execute(entry,
+                        theRequestDetails.getFhirServerBase())));
+                }
+            }
+        }
+
+        Bundle result = new Bundle().setType(BundleType.BATCHRESPONSE);
+        for (Future<BundleEntryComponent> response : responses) {
+            try {
+                result.addEntry(response.get());
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed executing batch entry", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted executing batch", e);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    private BundleEntryComponent execute(BundleEntryComponent entry, String serverBase) {
+        try {
+            if (entry.getRequest().getMethod() != HTTPVerb.GET) {
+                throw new MethodNotAllowedException(
+                    "Only GET entries are supported in a batch, not " + entry.getRequest().getMethod());
+            }
+            String url = entry.getRequest().getUrl();
+            if (url == null || url.isEmpty()) {
+                throw new InvalidRequestException("Batch entry has no request url");
+            }
+            int query = url.indexOf('?');
+            return query < 0 ? read(url, serverBase)
+                    : search(url.substring(0, query), url.substring(query + 1), serverBase);
+        } catch (BaseServerResponseException e) {
+            return createErrorEntry(e.getStatusCode(), e.getMessage());
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed executing batch entry " + entry.getRequest().getUrl(), e);
+            return createErrorEntry(Constants.STATUS_HTTP_500_INTERNAL_ERROR, e.getMessage());
+        }
+    }
+
+    private BundleEntryComponent read(String url, String serverBase) throws Exception {
+        IdType id = new IdType(url);
+        Class<? extends BaseResource> clazz = getResourceClass(id.getResourceType());
+        if (!id.hasIdPart()) {
+            throw new InvalidRequestException("Batch entry url " + url + " is neither a read nor a search");
+        }
+        BaseResource resource = index.getResourceById(clazz, id.getIdPart());
+        if (resource == null) {
+            throw new ResourceNotFoundException(id);
+        }
+        return createEntry((Resource) resource, serverBase);
+    }
+
+    private BundleEntryComponent search(String resourceType, String query, String serverBase) throws Exception {
+        Class<? extends BaseResource> clazz = getResourceClass(resourceType);
+        SearchParameters parameters = new SearchParameters(context, SearchParameters.parseQueryString(query));
+        List<String> supported = SEARCH_PARAMETERS.get(resourceType);
+        for (String parameter : parameters.getParameters().keySet()) {
+            if (!supported.contains(parameter.split(":")[0])) {
+                throw new InvalidRequestException("Search parameter " + parameter + " is not supported for "
+                        + resourceType + " in a batch, only " + supported);
+            }
+        }
+
+        SearchSession session = index.searchByText(clazz,
+            parameters.getAnd(IAnyResource.SP_RES_ID, new TokenAndListParam()),
+            parameters.getAnd(ExtendedMedication.SP_CODE, new TokenAndListParam()),
+            parameters.getAnd(Constants.PARAM_TEXT, new StringAndListParam()),
+            parameters.getOr(ExtendedMedication.SP_STATUS, new StringOrListParam()),
+            parameters.getAnd(FieldNames.LAST_MODIFIED, new DateAndListParam()), null);
+        Integer count = parameters.getCount();
+
+        Bundle searchset = new Bundle().setType(BundleType.SEARCHSET).setTotal(session.size());
+        for (IBaseResource resource : session.getResources(0, Math.min(session.size(), Util.getCount(count)))) {
+            searchset.addEntry()
+                .setFullUrl(getFullUrl((Resource) resource, serverBase))
+                .setResource((Resource) resource);
+        }
+        return createEntry(searchset, serverBase);
+    }
+
+    private Class<? extends BaseResource> getResourceClass(String resourceType) {
+        Class<? extends BaseResource> clazz = RESOURCE_CLASSES.get(resourceType);
+        if (clazz == null) {
+            throw new InvalidRequestException("Unsupported resource type " + resourceType + " in batch entry");
+        }
+        return clazz;
+    }
+
+    private String getFullUrl(Resource resource, String serverBase) {
+        return resource.getIdElement().withServerBase(serverBase, resource.fhirType()).getValue();
+    }
+
+    private BundleEntryComponent createEntry(Resource resource, String serverBase) {
+        BundleEntryComponent entry = new BundleEntryComponent().setResource(resource);
+        if (!(resource instanceof Bundle)) {
+            entry.setFullUrl(getFullUrl(resource, serverBase));
+        }
+        entry.getResponse().setStatus(Constants.STATUS_HTTP_200_OK + " OK");
+        return entry;
+    }
+
+    private BundleEntryComponent createErrorEntry(int status, String message) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue().setSeverity(IssueSeverity.ERROR).setCode(IssueType.PROCESSING).setDiagnostics(message);
+        BundleEntryComponent entry = new BundleEntryComponent();
+        entry.getResponse().setStatus(Integer.toString(status)).setOutcome(outcome);
+        return entry;
+    }
+}
@@ -0,0 +1,173 @@
+package au.gov.digitalhealth.medserve.server.resourceprovider;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.dstu3.model.DateTimeType;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.dstu3.model.OperationOutcome.IssueType;
+
+import au.gov.digitalhealth.medserve.server.index.Index;
+import au.gov.digitalhealth.medserve.transform.util.LoggingTimer;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.MethodNotAllowedException;
+
+/**
+ * Serves the system level <code>$export</code> operation, which writes every Medication, Substance and Organization as
+ * newline delimited JSON so systems mirroring medserve don't have to page through searches. It is a synchronous take
+ * on FHIR bulk data export, the resources are written in the response to the kick-off request rather than to files
+ * polled for later, so there is no job, status or paging to keep. <code>_type</code> limits the export to a comma
+ * separated list of resource types, written in that order, and <code>_since</code> to resources last modified on or
+ * after the specified date.
+ * <p>
+ * Resources' last modified dates are only known to the day, so an instant in <code>_since</code> is rounded down to
+ * the start of its day and the whole of that day is included. A client mirroring medserve can pass the time of its
+ * last export, and is sent again the resources modified earlier that day, which it already has, but none are missed.
+ * Resources with no last modified date, such as Organizations, are always exported, as they can't be shown to be
+ * unchanged since then.
+ * <p>
+ * Resources are written from the JSON stored in the index, one at a time in doc order through a buffer of
+ * <code>export.bufferSize</code> bytes, so an export takes the same memory however large the index is. They all come
+ * from the same index generation. HAPI can't stream a response from an operation, so the request is handled before it
+ * reaches HAPI.
+ */
+public class ExportHandler {
+
+    private static final Logger logger = Logger.getLogger(ExportHandler.class.getCanonicalName());
+
+    public static final String OPERATION = "$export";
+
+    public static final int BUFFER_SIZE = Integer.getInteger("export.bufferSize", 64 * 1024);
+
+    private static final String NDJSON_CONTENT_TYPE = "application/fhir+ndjson";
+
+    private static final List<String> OUTPUT_FORMATS =
+            Arrays.asList(NDJSON_CONTENT_TYPE, "application/ndjson", "ndjson");
+
+    private static final List<String> RESOURCE_TYPES = Arrays.asList("Medication", "Substance", "Organization");
+
+    private Index index;
+    private FhirContext context;
+
+    public ExportHandler(Index index, FhirContext context) {
+        this.index = index;
+        this.context = context;
+    }
+
+    /**
+     * @return true if the request is for the export operation, which must be handled by this rather than HAPI
+     */
+    public boolean isExport(HttpServletRequest request) {
+        return ("/" + OPERATION).equals(request.getPathInfo());
+    }
+
+    public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        List<String> resourceTypes;
+        String since;
+        try {
+            if (!request.getMethod().equals("GET")) {
+                throw new MethodNotAllowedException("Only GET is supported for " + OPERATION);
+            }
+            String outputFormat = request.getParameter("_outputFormat");
+            // An unescaped + in application/fhir+ndjson is decoded as a space
+            if (outputFormat != null && !OUTPUT_FORMATS.contains(outputFormat.replace(' ', '+'))) {
+                throw new InvalidRequestException(
+                    "Unsupported _outputFormat " + outputFormat + ", must be one of " + OUTPUT_FORMATS);
+            }
+            resourceTypes = getResourceTypes(request);
+            since = getSince(request);
+        } catch (MethodNotAllowedException | InvalidRequestException e) {
+            writeOutcome(response, e.getStatusCode(), e.getMessage());
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(NDJSON_CONTENT_TYPE + Constants.CHARSET_UTF8_CTSUFFIX);
+        OutputStream out = response.getOutputStream();
+        String acceptEncoding = request.getHeader(Constants.HEADER_ACCEPT_ENCODING);
+        if (acceptEncoding != null && acceptEncoding.contains(Constants.ENCODING_GZIP)) {
+            response.addHeader(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+        LoggingTimer timer = new LoggingTimer(logger, "Exporting " + resourceTypes + " since " + since);
+        try (OutputStream buffered = new BufferedOutputStream(out, BUFFER_SIZE)) {
+            WritableByteChannel channel = Channels.newChannel(buffered);
+            long count = index.export(resourceTypes, since, json -> {
+                channel.write(json);
+                buffered.write('\n');
+            });
+            logger.fine("Exported " + count + " resources of " + resourceTypes + " since " + since);
+        } catch (IOException | RuntimeException e) {
+            // The status has already been sent, all that can be done is to cut the response short
+            logger.log(Level.WARNING, "Failed exporting " + resourceTypes + " since " + since, e);
+            throw e;
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * @return the lower case names of the resource types to export, in the order requested
+     */
+    private List<String> getResourceTypes(HttpServletRequest request) {
+        String[] values = request.getParameterValues("_type");
+        if (values == null) {
+            values = new String[] { String.join(",", RESOURCE_TYPES) };
+        }
+        Set<String> resourceTypes = new LinkedHashSet<>();
+        for (String value : values) {
+            for (String resourceType : value.split(",")) {
+                if (!RESOURCE_TYPES.contains(resourceType.trim())) {
+                    throw new InvalidRequestException(
+                        "Unsupported _type " + resourceType + ", must be one of " + RESOURCE_TYPES);
+                }
+                resourceTypes.add(resourceType.trim().toLowerCase());
+            }
+        }
+        return new ArrayList<>(resourceTypes);
+    }
+
+    /**
+     * @return the date of the _since instant as resources' last modified dates are indexed, so the whole of that day is
+     *         included, or null if there is none
+     */
+    private String getSince(HttpServletRequest request) {
+        String value = request.getParameter("_since");
+        if (value == null) {
+            return null;
+        }
+        DateTimeType since;
+        try {
+            since = new DateTimeType(value);
+        } catch (DataFormatException | IllegalArgumentException e) {
+            throw new InvalidRequestException("Invalid _since " + value + ", must be a date or an instant");
+        }
+        return String.format("%04d-%02d-%02d", since.getYear(), since.getMonth() + 1, since.getDay());
+    }
+
+    private void writeOutcome(HttpServletResponse response, int status, String message) throws IOException {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue().setSeverity(IssueSeverity.ERROR).setCode(IssueType.PROCESSING).setDiagnostics(message);
+        response.setStatus(status);
+        response.setContentType(Constants.CT_FHIR_JSON_NEW + Constants.CHARSET_UTF8_CTSUFFIX);
+        response.getWriter().write(context.newJsonParser().encodeResourceToString(outcome));
+    }
+}
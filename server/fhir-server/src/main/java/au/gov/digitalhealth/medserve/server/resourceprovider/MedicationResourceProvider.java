@@ -1,33 +1,68 @@
 package au.gov.digitalhealth.medserve.server.resourceprovider;
 
 import java.io.IOException;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.hl7.fhir.dstu3.model.Extension;
 import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.IntegerType;
 import org.hl7.fhir.dstu3.model.Medication;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Parameters;
+import org.hl7.fhir.dstu3.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
 import au.gov.digitalhealth.medserve.extension.ExtendedMedication;
-import au.gov.digitalhealth.medserve.server.Util;
+import au.gov.digitalhealth.medserve.extension.ExtendedSubstance;
+import au.gov.digitalhealth.medserve.extension.MedicationType;
+import au.gov.digitalhealth.medserve.server.bundleprovider.SearchBundleProvider;
+import au.gov.digitalhealth.medserve.server.bundleprovider.SignedPagingProvider;
+import au.gov.digitalhealth.medserve.server.interceptor.BundleExtensionInterceptor;
+import au.gov.digitalhealth.medserve.server.index.FacetCount;
+import au.gov.digitalhealth.medserve.server.index.Inclusion;
 import au.gov.digitalhealth.medserve.server.index.Index;
+import au.gov.digitalhealth.medserve.server.index.SearchSession;
+import au.gov.digitalhealth.medserve.server.indexbuilder.IndexBuildingResourceProcessor;
 import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
+import au.gov.digitalhealth.medserve.server.indexbuilder.suggest.Suggestion;
+import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.model.api.annotation.Description;
-import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.rest.annotation.Count;
 import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.IncludeParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.annotation.OptionalParam;
 import ca.uhn.fhir.rest.annotation.Read;
 import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.rest.annotation.Sort;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.param.DateAndListParam;
 import ca.uhn.fhir.rest.param.NumberAndListParam;
 import ca.uhn.fhir.rest.param.StringAndListParam;
 import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenAndListParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 
 public class MedicationResourceProvider implements IResourceProvider {
+    private static final int DEFAULT_SUGGESTIONS = 10;
+    private static final int MAX_SUGGESTIONS = 100;
+
+    public static final String FACET_EXTENSION_URL =
+            ExtendedMedication.PROFILE_URL_BASE + "StructureDefinition/searchFacet";
+    private static final int MAX_FACET_VALUES = Integer.getInteger("search.facet.maxValues", 100);
+
     private Index index;
 
     public MedicationResourceProvider(Index index) {
@@ -44,8 +79,48 @@ public class MedicationResourceProvider implements IResourceProvider {
         return index.getResourceById(ExtendedMedication.class, theId.getIdPart());
     }
 
+    @Operation(name = "$suggest", idempotent = true)
+    @Description(shortDefinition = "Suggests active medications for typeahead, returning only their id, display and medication resource type")
+    public Parameters suggest(
+            @OperationParam(name = "q", min = 1) @Description(shortDefinition = "Text typed so far, matched against the words of the medication's name and codes with the last word matched as the start of a word") StringType text,
+            @OperationParam(name = "type", max = OperationParam.MAX_UNLIMITED) @Description(shortDefinition = "Only suggest medications with one of the specified medication resource types") List<StringType> types,
+            @OperationParam(name = "limit") @Description(shortDefinition = "Maximum number of suggestions, defaults to 10 and at most 100") IntegerType limit)
+            throws IOException {
+        if (text == null || text.isEmpty() || text.getValue().trim().isEmpty()) {
+            throw new InvalidRequestException("Parameter q must contain the text to suggest medications for");
+        }
+
+        Set<String> medicationResourceTypes = new HashSet<>();
+        if (types != null) {
+            for (StringType type : types) {
+                try {
+                    MedicationType.fromCode(type.getValue());
+                } catch (RuntimeException e) {
+                    throw new InvalidRequestException("Unknown medication resource type " + type.getValue());
+                }
+                medicationResourceTypes.add(type.getValue());
+            }
+        }
+
+        int count = limit == null || limit.getValue() == null || limit.getValue() <= 0 ? DEFAULT_SUGGESTIONS
+                : Math.min(limit.getValue(), MAX_SUGGESTIONS);
+
+        Parameters result = new Parameters();
+        for (Suggestion suggestion : index.suggestMedications(text.getValue().trim(), medicationResourceTypes,
+            count)) {
+            ParametersParameterComponent parameter = result.addParameter().setName("suggestion");
+            parameter.addPart().setName("id").setValue(new StringType(suggestion.getId()));
+            parameter.addPart().setName("display").setValue(new StringType(suggestion.getDisplay()));
+            parameter.addPart()
+                .setName(FieldNames.MEDICATION_RESOURCE_TYPE)
+                .setValue(MedicationType.fromCode(suggestion.getMedicationResourceType()).getCode().copy());
+        }
+        return result;
+    }
+
     @Search(type = ExtendedMedication.class)
     public IBundleProvider search(
+            @OptionalParam(name = IAnyResource.SP_RES_ID) @Description(shortDefinition = "Search for resources with one of the specified ids") TokenAndListParam id,
             @OptionalParam(name = ExtendedMedication.SP_CODE) @Description(shortDefinition = "Search the resource's codings") TokenAndListParam code,
             @OptionalParam(name = "_text") @Description(shortDefinition = "Search of the resource narrative") StringAndListParam text,
             @OptionalParam(name = FieldNames.PARENT) @Description(shortDefinition = "Deprecated, use ancestor instead. Search for resources covered by but more specific than the specified abstract medication") TokenAndListParam parent,
@@ -62,45 +137,143 @@ public class MedicationResourceProvider implements IResourceProvider {
             @OptionalParam(name = ExtendedMedication.SP_STATUS) @Description(shortDefinition = "Status of the medication, active, inactive (meaning no longer available) or entered-in-error") StringOrListParam status,
             @OptionalParam(name = FieldNames.LAST_MODIFIED) @Description(shortDefinition = "Date the underlying code system's content for this medication was last modified") DateAndListParam lastModified,
             @OptionalParam(name = FieldNames.INGREDIENT_COUNT) @Description(shortDefinition = "Filter on the number of ingredients a Medication has") NumberAndListParam ingredientCount,
-            @Count Integer theCount) throws IOException {
-        final InstantDt searchTime = InstantDt.withCurrentTime();
-        final int size = index.getMedicationsByParametersSize(ExtendedMedication.class, code, text, parent, ancestor,
+            @OptionalParam(name = "_facet") @Description(shortDefinition = "Count the values of form, manufacturer, brand, subsidy-code or medication-resource-type over all results, returned in extensions of the Bundle's meta") StringAndListParam facet,
+            @IncludeParam(allow = { "Medication:" + FieldNames.PACKAGE_ITEM, "Medication:" + FieldNames.INGREDIENT,
+                    "Medication:" + FieldNames.MANUFACTURER }) Set<Include> theIncludes,
+            @IncludeParam(reverse = true, allow = { "Medication:" + FieldNames.PARENT,
+                    "Medication:" + FieldNames.ANCESTOR }) Set<Include> theRevIncludes,
+            @Sort SortSpec theSort,
+            @Count Integer theCount,
+            RequestDetails theRequestDetails) throws IOException {
+        List<String> facetFields = getFacetFields(facet);
+        // HAPI's sort is bound from a hash map, so the sort is taken from the URL to keep the client's order
+        SearchParameters parameters = SearchParameters.of(theRequestDetails);
+        SearchBundleProvider result = search(parameters.getParameters(), id, code, text, parent, ancestor,
             medicationResourceType, form, container, ingredient, packageItem, brand, isBrand, manufacturer,
-            subsidyCode, status, lastModified, ingredientCount);
+            subsidyCode, status, lastModified, ingredientCount, theIncludes, theRevIncludes, parameters.getSort(),
+            theCount);
 
-        return new IBundleProvider() {
-
-            @Override
-            public Integer size() {
-                return size;
+        if (!facetFields.isEmpty()) {
+            for (Map.Entry<String, List<FacetCount>> field : result.getSession()
+                .getFacets(facetFields, MAX_FACET_VALUES)
+                .entrySet()) {
+                BundleExtensionInterceptor.addExtension(theRequestDetails,
+                    createFacetExtension(field.getKey(), field.getValue()));
             }
+        }
+        return result;
+    }
+
+    /**
+     * Runs a search from its raw parameters, for serving the later pages of a search, see
+     * {@link SignedPagingProvider}. Facets are only counted for the first page.
+     */
+    public SearchBundleProvider search(SearchParameters parameters) throws IOException {
+        return search(parameters.getParameters(),
+            parameters.getAnd(IAnyResource.SP_RES_ID, new TokenAndListParam()),
+            parameters.getAnd(ExtendedMedication.SP_CODE, new TokenAndListParam()),
+            parameters.getAnd(Constants.PARAM_TEXT, new StringAndListParam()),
+            parameters.getAnd(FieldNames.PARENT, new TokenAndListParam()),
+            parameters.getAnd(FieldNames.ANCESTOR, new TokenAndListParam()),
+            parameters.getOr(FieldNames.MEDICATION_RESOURCE_TYPE, new StringOrListParam()),
+            parameters.getAnd(ExtendedMedication.SP_FORM, new TokenAndListParam()),
+            parameters.getAnd(ExtendedMedication.SP_CONTAINER, new TokenAndListParam()),
+            parameters.getAnd(ExtendedMedication.SP_INGREDIENT, new TokenAndListParam()),
+            parameters.getAnd(ExtendedMedication.SP_PACKAGE_ITEM, new TokenAndListParam()),
+            parameters.getAnd(FieldNames.BRAND, new TokenAndListParam()),
+            parameters.getString(FieldNames.IS_BRAND),
+            parameters.getAnd(FieldNames.MANUFACTURER, new TokenAndListParam()),
+            parameters.getAnd(FieldNames.SUBSIDY_CODE, new TokenAndListParam()),
+            parameters.getOr(ExtendedMedication.SP_STATUS, new StringOrListParam()),
+            parameters.getAnd(FieldNames.LAST_MODIFIED, new DateAndListParam()),
+            parameters.getAnd(FieldNames.INGREDIENT_COUNT, new NumberAndListParam()),
+            parameters.getIncludes(false), parameters.getIncludes(true), parameters.getSort(), parameters.getCount());
+    }
+
+    private SearchBundleProvider search(Map<String, String[]> parameters, TokenAndListParam id,
+            TokenAndListParam code, StringAndListParam text, TokenAndListParam parent, TokenAndListParam ancestor,
+            StringOrListParam medicationResourceType, TokenAndListParam form, TokenAndListParam container,
+            TokenAndListParam ingredient, TokenAndListParam packageItem, TokenAndListParam brand, String isBrand,
+            TokenAndListParam manufacturer, TokenAndListParam subsidyCode, StringOrListParam status,
+            DateAndListParam lastModified, NumberAndListParam ingredientCount, Set<Include> theIncludes,
+            Set<Include> theRevIncludes, SortSpec theSort, Integer theCount) throws IOException {
+        List<Inclusion> inclusions = getInclusions(theIncludes, theRevIncludes);
+        SearchSession session = index.searchMedicationsByParameters(ExtendedMedication.class, id, code, text,
+            parent, ancestor, medicationResourceType, form, container, ingredient, packageItem, brand, isBrand,
+            manufacturer, subsidyCode, status, lastModified, ingredientCount, theSort);
+        return new SearchBundleProvider("Medication", parameters, session, inclusions, theCount);
+    }
 
-            @Override
-            public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
-                if (theFromIndex >= size) {
-                    return Collections.emptyList();
+    private List<Inclusion> getInclusions(Set<Include> theIncludes, Set<Include> theRevIncludes) {
+        List<Inclusion> inclusions = new ArrayList<>();
+        if (theIncludes != null) {
+            for (Include include : theIncludes) {
+                switch (include.getParamName()) {
+                    case FieldNames.PACKAGE_ITEM:
+                        inclusions.add(Inclusion.include(FieldNames.PACKAGE_ITEM, ExtendedMedication.class));
+                        break;
+                    case FieldNames.INGREDIENT:
+                        inclusions.add(Inclusion.include(FieldNames.INGREDIENT, ExtendedSubstance.class));
+                        break;
+                    case FieldNames.MANUFACTURER:
+                        inclusions.add(Inclusion.include(FieldNames.MANUFACTURER, Organization.class));
+                        break;
+                    default:
+                        throw new InvalidRequestException("Unsupported _include " + include.getValue());
                 }
-                return index.getMedicationsByParameters(ExtendedMedication.class, code, text, parent, ancestor,
-                    medicationResourceType, form, container, ingredient, packageItem, brand, isBrand, manufacturer,
-                    subsidyCode, status, lastModified, ingredientCount, theFromIndex, theToIndex);
             }
-
-            @Override
-            public InstantDt getPublished() {
-                return searchTime;
+        }
+        if (theRevIncludes != null) {
+            for (Include revInclude : theRevIncludes) {
+                if (!revInclude.getParamName().equals(FieldNames.PARENT)
+                        && !revInclude.getParamName().equals(FieldNames.ANCESTOR)) {
+                    throw new InvalidRequestException("Unsupported _revinclude " + revInclude.getValue());
+                }
+                inclusions.add(Inclusion.revInclude(revInclude.getParamName(), ExtendedMedication.class));
             }
+        }
+        return inclusions;
+    }
 
-            @Override
-            public Integer preferredPageSize() {
-                return Util.getCount(theCount);
+    private List<String> getFacetFields(StringAndListParam facet) {
+        List<String> fields = new ArrayList<>();
+        if (facet == null) {
+            return fields;
+        }
+        for (StringOrListParam or : facet.getValuesAsQueryTokens()) {
+            for (StringParam value : or.getValuesAsQueryTokens()) {
+                if (!IndexBuildingResourceProcessor.FACET_FIELDS.contains(value.getValue())) {
+                    throw new InvalidRequestException("Unsupported _facet " + value.getValue() + ", must be one of "
+                            + IndexBuildingResourceProcessor.FACET_FIELDS);
+                }
+                if (!fields.contains(value.getValue())) {
+                    fields.add(value.getValue());
+                }
             }
+        }
+        return fields;
+    }
 
-            @Override
-            public String getUuid() {
-                return null;
+    /**
+     * Creates the extension for the counts of a facet field, holding the field and an extension for each value with
+     * its token, display and count.
+     */
+    private Extension createFacetExtension(String field, List<FacetCount> counts) {
+        Extension extension = new Extension(FACET_EXTENSION_URL);
+        extension.addExtension("field", new StringType(field));
+        for (FacetCount count : counts) {
+            String display = count.getDisplay();
+            if (display == null && field.equals(FieldNames.MEDICATION_RESOURCE_TYPE)) {
+                display = MedicationType.fromCode(count.getValue()).getCode().getDisplay();
             }
-        };
+            Extension value = extension.addExtension();
+            value.setUrl("value");
+            value.addExtension("token", new StringType(count.getValue()));
+            if (display != null) {
+                value.addExtension("display", new StringType(display));
+            }
+            value.addExtension("count", new IntegerType(count.getCount()));
+        }
+        return extension;
     }
-
-
 }
@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import org.hl7.fhir.dstu3.model.IdType;
 import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
 import au.gov.digitalhealth.medserve.server.bundleprovider.TextSearchBundleProvider;
@@ -14,8 +15,13 @@ import ca.uhn.fhir.rest.annotation.IdParam;
 import ca.uhn.fhir.rest.annotation.OptionalParam;
 import ca.uhn.fhir.rest.annotation.Read;
 import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.rest.annotation.Sort;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.param.StringAndListParam;
+import ca.uhn.fhir.rest.param.TokenAndListParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 
 public class OrganizationResourceProvider implements IResourceProvider {
@@ -37,9 +43,25 @@ public class OrganizationResourceProvider implements IResourceProvider {
 
     @Search()
     public IBundleProvider searchByText(
+            @OptionalParam(name = IAnyResource.SP_RES_ID) @Description(shortDefinition = "Search for resources with one of the specified ids") TokenAndListParam id,
             @OptionalParam(name = "_text") @Description(shortDefinition = "Search of the resource narrative") StringAndListParam text,
-            @Count Integer theCount) throws IOException {
+            @Sort SortSpec theSort,
+            @Count Integer theCount,
+            RequestDetails theRequestDetails) throws IOException {
 
-        return new TextSearchBundleProvider(Organization.class, index, null, text, null, null, theCount);
+        // HAPI's sort is bound from a hash map, so the sort is taken from the URL to keep the client's order
+        SearchParameters parameters = SearchParameters.of(theRequestDetails);
+        return new TextSearchBundleProvider(Organization.class, index, parameters.getParameters(), id, null,
+            text, null, null, parameters.getSort(), theCount);
+    }
+
+    /**
+     * Runs a search from its raw parameters, for serving the later pages of a search.
+     */
+    public IBundleProvider searchByText(SearchParameters parameters) throws IOException {
+        return new TextSearchBundleProvider(Organization.class, index, parameters.getParameters(),
+            parameters.getAnd(IAnyResource.SP_RES_ID, new TokenAndListParam()), null,
+            parameters.getAnd(Constants.PARAM_TEXT, new StringAndListParam()), null, null, parameters.getSort(),
+            parameters.getCount());
     }
 }
@@ -0,0 +1,208 @@
+package au.gov.digitalhealth.medserve.server.resourceprovider;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IQueryParameterAnd;
+import ca.uhn.fhir.model.api.IQueryParameterOr;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.QualifiedParamList;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.UrlUtil;
+
+/**
+ * Binds the raw parameters of a search, as they appear in its URL, to HAPI's parameter types, for searches run from a
+ * URL rather than a request HAPI has already bound, i.e. the entries of a batch and the pages of a search.
+ */
+public class SearchParameters {
+
+    private FhirContext context;
+    private Map<String, String[]> parameters;
+
+    public SearchParameters(FhirContext context, Map<String, String[]> parameters) {
+        this.context = context;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Binds the parameters of a request HAPI is serving, in the order they appear in its URL rather than the order of
+     * HAPI's parameter map, so a sort over several fields is applied in the order the client gave it.
+     */
+    public static SearchParameters of(RequestDetails request) {
+        Map<String, String[]> parameters = request.getParameters();
+        if (request instanceof ServletRequestDetails) {
+            String query = ((ServletRequestDetails) request).getServletRequest().getQueryString();
+            if (query != null) {
+                parameters = parseQueryString(query);
+            }
+        }
+        return new SearchParameters(request.getFhirContext(), parameters);
+    }
+
+    /**
+     * Parses a query string into parameters in the order they first appear, with each parameter's values in the order
+     * they appear. The older <code>_sort:asc</code> and <code>_sort:desc</code> are folded into <code>_sort</code>,
+     * with the fields sorted descending prefixed with -, so the order of every sort field is kept however the client
+     * mixed them, and a sort is always under the one key.
+     */
+    public static Map<String, String[]> parseQueryString(String query) {
+        Map<String, List<String>> values = new LinkedHashMap<>();
+        for (String parameter : query.split("&")) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            int equals = parameter.indexOf('=');
+            String name = UrlUtil.unescape(equals < 0 ? parameter : parameter.substring(0, equals));
+            String value = equals < 0 ? "" : UrlUtil.unescape(parameter.substring(equals + 1));
+            if (name.startsWith(Constants.PARAM_SORT + ":")) {
+                boolean descending = name.equals(Constants.PARAM_SORT_DESC);
+                StringBuilder fields = new StringBuilder();
+                for (String field : value.split(",")) {
+                    if (fields.length() > 0) {
+                        fields.append(',');
+                    }
+                    fields.append(descending ? "-" : "").append(field);
+                }
+                name = Constants.PARAM_SORT;
+                value = fields.toString();
+            }
+            values.computeIfAbsent(name, n -> new ArrayList<>()).add(value);
+        }
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> parameter : values.entrySet()) {
+            parameters.put(parameter.getKey(), parameter.getValue().toArray(new String[0]));
+        }
+        return parameters;
+    }
+
+    public Map<String, String[]> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Sets the values of the parameter with the specified name, including any qualifier, on the and list parameter.
+     *
+     * @return the parameter, or null if there are no values for it
+     */
+    public <T extends IQueryParameterAnd<?>> T getAnd(String name, T parameter) {
+        List<QualifiedParamList> values = getValues(name);
+        if (values.isEmpty()) {
+            return null;
+        }
+        parameter.setValuesAsQueryTokens(context, name, values);
+        return parameter;
+    }
+
+    /**
+     * Sets the values of the parameter with the specified name, including any qualifier, on the or list parameter.
+     *
+     * @return the parameter, or null if there are no values for it
+     */
+    public <T extends IQueryParameterOr<?>> T getOr(String name, T parameter) {
+        List<QualifiedParamList> values = getValues(name);
+        if (values.isEmpty()) {
+            return null;
+        }
+        if (values.size() > 1) {
+            throw new InvalidRequestException("Search parameter " + name + " can only be specified once");
+        }
+        parameter.setValuesAsQueryTokens(context, name, values.get(0));
+        return parameter;
+    }
+
+    /**
+     * @return the single value of the parameter, or null if there is none
+     */
+    public String getString(String name) {
+        String[] values = parameters.get(name);
+        if (values == null || values.length == 0) {
+            return null;
+        }
+        if (values.length > 1) {
+            throw new InvalidRequestException("Search parameter " + name + " can only be specified once");
+        }
+        return values[0];
+    }
+
+    public Integer getCount() {
+        String count = getString(Constants.PARAM_COUNT);
+        try {
+            return count == null ? null : Integer.valueOf(count);
+        } catch (NumberFormatException e) {
+            throw new InvalidRequestException("Invalid " + Constants.PARAM_COUNT + " " + count);
+        }
+    }
+
+    /**
+     * @return the _include or _revinclude values, or null if there are none
+     */
+    public Set<Include> getIncludes(boolean reverse) {
+        String[] values = parameters.get(reverse ? Constants.PARAM_REVINCLUDE : Constants.PARAM_INCLUDE);
+        if (values == null) {
+            return null;
+        }
+        Set<Include> includes = new HashSet<>();
+        for (String value : values) {
+            includes.add(new Include(value));
+        }
+        return includes;
+    }
+
+    /**
+     * @return the sort specified by _sort, where a field prefixed with - is sorted descending, or by the older
+     *         _sort:asc and _sort:desc, in the order of the parameters, or null if there is no sort
+     */
+    public SortSpec getSort() {
+        SortSpec first = null;
+        SortSpec last = null;
+        for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+            String[] nameAndQualifier = parameter.getKey().split(":", 2);
+            if (!nameAndQualifier[0].equals(Constants.PARAM_SORT)) {
+                continue;
+            }
+            SortOrderEnum qualifiedOrder = nameAndQualifier.length < 2 ? null
+                    : parameter.getKey().equals(Constants.PARAM_SORT_DESC) ? SortOrderEnum.DESC : SortOrderEnum.ASC;
+            for (String value : parameter.getValue()) {
+                for (String field : value.split(",")) {
+                    SortSpec sort;
+                    if (qualifiedOrder == null && field.startsWith("-")) {
+                        sort = new SortSpec(field.substring(1), SortOrderEnum.DESC);
+                    } else {
+                        sort = new SortSpec(field, qualifiedOrder == null ? SortOrderEnum.ASC : qualifiedOrder);
+                    }
+                    if (first == null) {
+                        first = sort;
+                    } else {
+                        last.setChain(sort);
+                    }
+                    last = sort;
+                }
+            }
+        }
+        return first;
+    }
+
+    private List<QualifiedParamList> getValues(String name) {
+        List<QualifiedParamList> values = new ArrayList<>();
+        for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+            String[] nameAndQualifier = parameter.getKey().split(":", 2);
+            if (nameAndQualifier[0].equals(name)) {
+                String qualifier = nameAndQualifier.length > 1 ? ":" + nameAndQualifier[1] : null;
+                for (String value : parameter.getValue()) {
+                    values.add(QualifiedParamList.splitQueryStringByCommasIgnoreEscape(qualifier, value));
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import org.hl7.fhir.dstu3.model.IdType;
 import org.hl7.fhir.dstu3.model.Substance;
+import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
 import au.gov.digitalhealth.medserve.server.bundleprovider.TextSearchBundleProvider;
@@ -15,7 +16,11 @@ import ca.uhn.fhir.rest.annotation.IdParam;
 import ca.uhn.fhir.rest.annotation.OptionalParam;
 import ca.uhn.fhir.rest.annotation.Read;
 import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.rest.annotation.Sort;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.param.DateAndListParam;
 import ca.uhn.fhir.rest.param.StringAndListParam;
 import ca.uhn.fhir.rest.param.StringOrListParam;
@@ -41,12 +46,30 @@ public class SubstanceResourceProvider implements IResourceProvider {
 
     @Search(type = Substance.class)
     public IBundleProvider searchByText(
+            @OptionalParam(name = IAnyResource.SP_RES_ID) @Description(shortDefinition = "Search for resources with one of the specified ids") TokenAndListParam id,
             @OptionalParam(name = Substance.SP_CODE) @Description(shortDefinition = "Search the resource's codings") TokenAndListParam code,
             @OptionalParam(name = "_text") @Description(shortDefinition = "Search of the resource narrative") StringAndListParam text,
             @OptionalParam(name = Substance.SP_STATUS) @Description(shortDefinition = "Status of the substance, active, inactive (meaning no longer available) or entered-in-error") StringOrListParam status,
             @OptionalParam(name = FieldNames.LAST_MODIFIED) @Description(shortDefinition = "Date the underlying code system's content for this substance was last modified") DateAndListParam lastModified,
-            @Count Integer theCount) throws IOException {
+            @Sort SortSpec theSort,
+            @Count Integer theCount,
+            RequestDetails theRequestDetails) throws IOException {
+        // HAPI's sort is bound from a hash map, so the sort is taken from the URL to keep the client's order
+        SearchParameters parameters = SearchParameters.of(theRequestDetails);
+        return new TextSearchBundleProvider(Substance.class, index, parameters.getParameters(), id, code, text,
+            status, lastModified, parameters.getSort(), theCount);
+    }
 
-        return new TextSearchBundleProvider(Substance.class, index, code, text, status, lastModified, theCount);
+    /**
+     * Runs a search from its raw parameters, for serving the later pages of a search.
+     */
+    public IBundleProvider searchByText(SearchParameters parameters) throws IOException {
+        return new TextSearchBundleProvider(Substance.class, index, parameters.getParameters(),
+            parameters.getAnd(IAnyResource.SP_RES_ID, new TokenAndListParam()),
+            parameters.getAnd(Substance.SP_CODE, new TokenAndListParam()),
+            parameters.getAnd(Constants.PARAM_TEXT, new StringAndListParam()),
+            parameters.getOr(Substance.SP_STATUS, new StringOrListParam()),
+            parameters.getAnd(FieldNames.LAST_MODIFIED, new DateAndListParam()), parameters.getSort(),
+            parameters.getCount());
     }
 }
@@ -0,0 +1,69 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import au.gov.digitalhealth.medserve.server.indexbuilder.constants.IndexFiles;
+
+public class ResourceBlobStoreTest {
+
+    /**
+     * Maps the file in chunks of 16 bytes, so blobs within a chunk, ending on a boundary and spanning several chunks
+     * are all read.
+     */
+    @Test
+    public void readsAcrossChunks() throws IOException {
+        Path directory = Files.createTempDirectory("resource-blob-store-test");
+        Path file = directory.resolve(IndexFiles.RESOURCE_BLOB);
+        try {
+            byte[] bytes = new byte[100];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) (i * 7);
+            }
+            Files.write(file, bytes);
+
+            ResourceBlobStore store = ResourceBlobStore.open(directory, 4);
+            assertEquals(bytes.length, store.size());
+            for (int offset = 0; offset <= bytes.length; offset++) {
+                for (int length = 0; offset + length <= bytes.length; length++) {
+                    ByteBuffer blob = store.get(offset, length);
+                    assertTrue(blob.isReadOnly());
+                    assertEquals(ByteBuffer.wrap(bytes, offset, length), blob);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void noBlobFile() throws IOException {
+        Path directory = Files.createTempDirectory("resource-blob-store-test");
+        try {
+            assertEquals(null, ResourceBlobStore.open(directory));
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsBlobPastTheEnd() throws IOException {
+        Path directory = Files.createTempDirectory("resource-blob-store-test");
+        Path file = directory.resolve(IndexFiles.RESOURCE_BLOB);
+        try {
+            Files.write(file, new byte[40]);
+            ResourceBlobStore.open(directory, 4).get(30, 11);
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(directory);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.dstu3.model.Medication.MedicationStatus;
+import org.hl7.fhir.dstu3.model.Meta;
+import org.hl7.fhir.dstu3.model.Narrative;
+import org.hl7.fhir.dstu3.model.Narrative.NarrativeStatus;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.Substance;
+import org.hl7.fhir.dstu3.model.Substance.FHIRSubstanceStatus;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import au.gov.digitalhealth.medserve.extension.ExtendedMedication;
+import au.gov.digitalhealth.medserve.extension.ExtendedSubstance;
+import au.gov.digitalhealth.medserve.extension.MedicationType;
+import au.gov.digitalhealth.medserve.server.indexbuilder.IndexBuildingResourceProcessor;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.param.StringAndListParam;
+import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.StringParam;
+
+/**
+ * Builds the same resources into an index with a single shard per partition and one with several, and checks
+ * searches of them return the same results in the same order.
+ */
+public class ShardedIndexTest {
+
+    private static final int SHARDS = 3;
+
+    private static final int MEDICATIONS = SearchSession.MAX_SESSION_DOCS + 500;
+
+    private static final int PAGE_SIZE = 37;
+
+    private static final String[] NAMES = { "paracetamol 500 mg tablet", "amoxicillin 250 mg capsule", "amoxicillin",
+            "paracetamol 1 g tablet", "ibuprofen 200 mg tablet" };
+
+    private static final MedicationType[] TYPES = { MedicationType.UnbrandedProductStrengthForm,
+            MedicationType.UnbrandedProductStrengthForm, MedicationType.UnbrandedProduct,
+            MedicationType.BrandedProductStrengthForm, MedicationType.BrandedPackage };
+
+    private static Path root;
+    private static List<String> ids = new ArrayList<>();
+    private static IndexGenerationManager unsharded;
+    private static IndexGenerationManager sharded;
+
+    @BeforeClass
+    public static void buildIndexes() throws IOException {
+        root = Files.createTempDirectory("sharded-index-test");
+        List<Resource> resources = createResources();
+        unsharded = build(root.resolve("unsharded"), resources, 1);
+        sharded = build(root.resolve("sharded"), resources, SHARDS);
+    }
+
+    @AfterClass
+    public static void deleteIndexes() throws IOException {
+        if (unsharded != null) {
+            unsharded.close();
+        }
+        if (sharded != null) {
+            sharded.close();
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void partitionsAreSharded() throws IOException {
+        IndexGeneration generation = sharded.acquire();
+        try {
+            assertEquals(SHARDS, generation.getPartition("medication").getShardCount());
+            assertEquals(SHARDS, generation.getPartition("medication").getReader().leaves().size());
+        } finally {
+            sharded.release(generation);
+        }
+    }
+
+    @Test
+    public void readsEveryResourceByIdFromItsShard() throws IOException {
+        for (IndexGenerationManager generations : new IndexGenerationManager[] { unsharded, sharded }) {
+            IndexGeneration generation = generations.acquire();
+            try {
+                for (String id : ids) {
+                    String resourceType = id.startsWith("sub") ? "substance"
+                            : id.startsWith("org") ? "organization" : "medication";
+                    int doc = generation.getDoc(resourceType, id);
+                    assertTrue("No " + resourceType + " " + id, doc >= 0);
+                    assertEquals(id, generation.getId(doc));
+                }
+                assertEquals(-1, generation.getDoc("medication", "999"));
+                assertEquals(-1, generation.getDoc("medication", "sub1"));
+                assertEquals(-1, generation.getDoc("patient", "1000"));
+            } finally {
+                generations.release(generation);
+            }
+        }
+    }
+
+    @Test
+    public void metaFallsBackToLastModified() throws IOException {
+        IndexGeneration generation = sharded.acquire();
+        try {
+            Meta meta = generation.getMeta(generation.getDoc("medication", "1000"));
+            assertEquals("2018-01-01", meta.getVersionId());
+            assertEquals(new InstantType("2018-01-01T00:00:00Z").getValue(), meta.getLastUpdated());
+            assertFalse(generation.getMeta(generation.getDoc("organization", "org1")).hasVersionId());
+        } finally {
+            sharded.release(generation);
+        }
+    }
+
+    @Test
+    public void scoredSearchMatches() throws IOException {
+        assertSameResults(ExtendedMedication.class, textQuery("para"), null);
+        assertSameResults(ExtendedMedication.class, textQuery("paracetamol 500"), null);
+    }
+
+    @Test
+    public void unscoredSearchMatches() throws IOException {
+        assertSameResults(ExtendedMedication.class, textQuery(null), null);
+        assertSameResults(Substance.class, QueryBuilder
+            .createTextSearchBuilder(Substance.class, null, null, null, null, null)
+            .build(), null);
+        assertSameResults(Organization.class, QueryBuilder
+            .createTextSearchBuilder(Organization.class, null, null, null, null, null)
+            .build(), null);
+    }
+
+    @Test
+    public void sortedSearchMatches() throws IOException {
+        assertSameResults(ExtendedMedication.class, textQuery(null),
+            QueryBuilder.createSort(new SortSpec("display", SortOrderEnum.DESC)));
+        assertSameResults(ExtendedMedication.class, textQuery("para"),
+            QueryBuilder.createSort(new SortSpec("ingredient-count", SortOrderEnum.ASC)));
+        assertSameResults(ExtendedMedication.class, textQuery(null), QueryBuilder.createSort(
+            new SortSpec("last-modified", SortOrderEnum.DESC, new SortSpec("medication-resource-type"))));
+    }
+
+    /**
+     * Pages past the window a session collects are searched after the end of the page before, so they must continue
+     * across the boundaries between shards in the same order as an unsharded index.
+     */
+    @Test
+    public void pagesPastTheWindowMatch() throws IOException {
+        Sort byDisplay = QueryBuilder.createSort(new SortSpec("display"));
+        for (Sort sort : new Sort[] { null, byDisplay }) {
+            List<String> expected = getIds(session(unsharded, ExtendedMedication.class, textQuery(null), sort));
+            assertTrue(expected.size() > SearchSession.MAX_SESSION_DOCS);
+
+            SearchSession paged = session(sharded, ExtendedMedication.class, textQuery(null), sort);
+            List<String> actual = new ArrayList<>();
+            for (int from = 0; from < paged.size(); from += PAGE_SIZE) {
+                actual.addAll(getIds(paged.getResources(from, Math.min(paged.size(), from + PAGE_SIZE))));
+            }
+            assertEquals(expected, actual);
+
+            // A page requested from another session with a cursor passed on through a page link
+            int offset = SearchSession.MAX_SESSION_DOCS + 3 * PAGE_SIZE
+                    - SearchSession.MAX_SESSION_DOCS % PAGE_SIZE;
+            PagingCursor cursor = paged.getCursor(offset);
+            assertNotNull(cursor);
+            SearchSession resumed = session(sharded, ExtendedMedication.class, textQuery(null), sort);
+            assertTrue(resumed.addCursor(PagingCursor.decode(cursor.encode())));
+            assertEquals(expected.subList(offset, offset + PAGE_SIZE),
+                getIds(resumed.getResources(offset, offset + PAGE_SIZE)));
+        }
+    }
+
+    private static void assertSameResults(Class<? extends IBaseResource> clazz, Query query, Sort sort)
+            throws IOException {
+        SearchSession expected = session(unsharded, clazz, query, sort);
+        SearchSession actual = session(sharded, clazz, query, sort);
+        assertTrue(expected.size() > 0);
+        assertEquals(expected.size(), actual.size());
+        assertEquals(getIds(expected), getIds(actual));
+    }
+
+    private static SearchSession session(IndexGenerationManager generations, Class<? extends IBaseResource> clazz,
+            Query query, Sort sort) throws IOException {
+        return new SearchSession(generations, new ResourceCache(), new SearchCoalescer(), clazz, query, sort);
+    }
+
+    private static Query textQuery(String text) {
+        StringAndListParam textParam = text == null ? null
+                : new StringAndListParam().addAnd(new StringOrListParam().addOr(new StringParam(text)));
+        return QueryBuilder.createTextSearchBuilder(ExtendedMedication.class, null, null, textParam, null, null)
+            .build();
+    }
+
+    private static List<String> getIds(SearchSession session) {
+        return getIds(session.getResources(0, session.size()));
+    }
+
+    private static List<String> getIds(List<IBaseResource> resources) {
+        List<String> result = new ArrayList<>();
+        for (IBaseResource resource : resources) {
+            result.add(resource.getIdElement().getIdPart());
+        }
+        return result;
+    }
+
+    private static IndexGenerationManager build(Path path, List<Resource> resources, int shards) throws IOException {
+        try (IndexBuildingResourceProcessor processor = new IndexBuildingResourceProcessor(path.toFile(), 1,
+            IndexBuildingResourceProcessor.DEFAULT_DISPLAY_MIN_GRAM,
+            IndexBuildingResourceProcessor.DEFAULT_DISPLAY_MAX_GRAM, shards)) {
+            // Several batches, so the index has several segments before it is merged
+            for (int i = 0; i < resources.size(); i += 200) {
+                processor.processResources(resources.subList(i, Math.min(resources.size(), i + 200)));
+            }
+        }
+        return new IndexGenerationManager(path, new FilterCache(), new SearchExecutor(0, 0));
+    }
+
+    /**
+     * @return Medications with many resources of the same rank, so their order relies on how ties are broken, and a
+     *         Substance and an Organization they refer to
+     */
+    private static List<Resource> createResources() {
+        List<Resource> resources = new ArrayList<>();
+        Organization organization = new Organization();
+        organization.setId("org1");
+        organization.setName("Acme Pharma");
+        organization.setText(narrative("Acme Pharma"));
+        resources.add(organization);
+        ids.add("org1");
+
+        ExtendedSubstance substance = new ExtendedSubstance();
+        substance.setId("sub1");
+        substance.setStatus(FHIRSubstanceStatus.ACTIVE);
+        substance.setLastModified(new DateType("2018-01-01"));
+        substance.setText(narrative("paracetamol"));
+        substance.getCode().addCoding(new Coding("http://snomed.info/sct", "2442011000036104", "paracetamol"));
+        resources.add(substance);
+        ids.add("sub1");
+
+        for (int i = 0; i < MEDICATIONS; i++) {
+            ExtendedMedication medication = new ExtendedMedication();
+            String id = Integer.toString(1000 + i);
+            String name = NAMES[i % NAMES.length] + " x" + (i % 50);
+            medication.setId(id);
+            medication.setStatus(MedicationStatus.ACTIVE);
+            medication.setLastModified(new DateType("2018-0" + (1 + i % 9) + "-01"));
+            medication.setText(narrative(name));
+            medication.getCode().addCoding(new Coding("http://snomed.info/sct", id + "01", name)).setText(name);
+            medication.setMedicationResourceType(TYPES[i % TYPES.length].getCode());
+            medication.setForm(new CodeableConcept()
+                .addCoding(new Coding("http://snomed.info/sct", "f" + (i % 4), "Form" + (i % 4))));
+            medication.setManufacturer(new Reference("Organization/org1").setDisplay("Acme Pharma"));
+            for (int j = 0; j <= i % 3; j++) {
+                medication.addIngredient().setItem(new Reference("Substance/sub1").setDisplay("paracetamol"));
+            }
+            resources.add(medication);
+            ids.add(id);
+        }
+        return resources;
+    }
+
+    private static Narrative narrative(String text) {
+        Narrative narrative = new Narrative();
+        narrative.setStatus(NarrativeStatus.GENERATED);
+        narrative.setDivAsString("<div><p>" + text + "</p></div>");
+        return narrative;
+    }
+}
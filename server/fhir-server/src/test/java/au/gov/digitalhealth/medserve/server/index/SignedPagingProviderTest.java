@@ -0,0 +1,215 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.apache.lucene.search.Query;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.Medication.MedicationStatus;
+import org.hl7.fhir.dstu3.model.Narrative;
+import org.hl7.fhir.dstu3.model.Narrative.NarrativeStatus;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import au.gov.digitalhealth.medserve.extension.ExtendedMedication;
+import au.gov.digitalhealth.medserve.extension.MedicationType;
+import au.gov.digitalhealth.medserve.server.bundleprovider.SearchBundleProvider;
+import au.gov.digitalhealth.medserve.server.bundleprovider.SignedPagingProvider;
+import au.gov.digitalhealth.medserve.server.indexbuilder.IndexBuildingResourceProcessor;
+import au.gov.digitalhealth.medserve.server.resourceprovider.SearchParameters;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+/**
+ * Checks the page tokens of {@link SignedPagingProvider} are served from their signed search, with the cursor they
+ * carry when it is for the current index generation, and rejected if they have been altered.
+ */
+public class SignedPagingProviderTest {
+
+    private static final int MEDICATIONS = SearchSession.MAX_SESSION_DOCS + 200;
+
+    private static final int PAGE_SIZE = 37;
+
+    private static final int OFFSET = SearchSession.MAX_SESSION_DOCS + 2 * PAGE_SIZE
+            - SearchSession.MAX_SESSION_DOCS % PAGE_SIZE;
+
+    private static Path root;
+    private static IndexGenerationManager generations;
+    private static SearchCoalescer coalescer = new SearchCoalescer(false);
+    private static SignedPagingProvider provider;
+    private static List<String> expected;
+
+    @BeforeClass
+    public static void buildIndex() throws IOException {
+        root = Files.createTempDirectory("signed-paging-provider-test");
+        publish(1);
+        generations = new IndexGenerationManager(root, new FilterCache(), new SearchExecutor(0, 0));
+        provider = new SignedPagingProvider(FhirContext.forDstu3()).addSearch("Medication",
+            parameters -> new SearchBundleProvider("Medication", parameters.getParameters(), session(),
+                Collections.emptyList(), PAGE_SIZE));
+        SearchSession all = session();
+        expected = getIds(all.getResources(0, all.size()));
+    }
+
+    @AfterClass
+    public static void deleteIndex() throws IOException {
+        if (generations != null) {
+            generations.close();
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void tokenIsServedFromItsSearch() throws IOException {
+        String id = store("status=active&_count=" + PAGE_SIZE);
+        assertEquals(id, store("_count=" + PAGE_SIZE + "&status=active"));
+
+        IBundleProvider result = provider.retrieveResultList(id);
+        assertTrue(result instanceof SearchBundleProvider);
+        assertEquals("Medication", ((SearchBundleProvider) result).getResourceName());
+        assertEquals("active", ((SearchBundleProvider) result).getParameters().get("status")[0]);
+        assertEquals(expected.size(), result.size().intValue());
+        assertEquals(expected.subList(PAGE_SIZE, 2 * PAGE_SIZE), getIds(result.getResources(PAGE_SIZE,
+            2 * PAGE_SIZE)));
+        provider.clear();
+    }
+
+    @Test
+    public void alteredTokensAreRejected() throws IOException {
+        String id = store("status=active");
+        int dot = id.indexOf('.');
+        String payload = id.substring(0, dot);
+        String signature = id.substring(dot + 1);
+
+        assertNull(provider.retrieveResultList(alter(payload) + "." + signature));
+        assertNull(provider.retrieveResultList(payload + "." + alter(signature)));
+        assertNull(provider.retrieveResultList(payload));
+        assertNull(provider.retrieveResultList("not a token"));
+        provider.clear();
+    }
+
+    @Test
+    public void pageIsServedFromTheCursorOfItsGeneration() throws IOException {
+        String id = store("status=active");
+        SearchBundleProvider first = (SearchBundleProvider) provider.retrieveResultList(id);
+        first.getResources(OFFSET - PAGE_SIZE, OFFSET);
+        String cursorId = getCursorId(id);
+        provider.clear();
+
+        long executions = coalescer.getExecutions();
+        IBundleProvider resumed = provider.retrieveResultList(cursorId);
+        SearchSession session = ((SearchBundleProvider) resumed).getSession();
+        assertNotNull(session.getCursor(OFFSET));
+        assertEquals(expected.size(), resumed.size().intValue());
+        assertEquals(expected.subList(OFFSET, OFFSET + PAGE_SIZE),
+            getIds(resumed.getResources(OFFSET, OFFSET + PAGE_SIZE)));
+        // Only the total was counted, the window wasn't collected
+        assertEquals(executions + 1, coalescer.getExecutions());
+        provider.clear();
+    }
+
+    @Test
+    public void cursorOfAnotherGenerationIsNotUsed() throws IOException {
+        String id = store("status=active");
+        SearchBundleProvider first = (SearchBundleProvider) provider.retrieveResultList(id);
+        first.getResources(OFFSET - PAGE_SIZE, OFFSET);
+        String cursorId = getCursorId(id);
+        provider.clear();
+
+        publish(2);
+        generations.maybeRefresh();
+
+        IBundleProvider resumed = provider.retrieveResultList(cursorId);
+        SearchSession session = ((SearchBundleProvider) resumed).getSession();
+        assertEquals(2, session.getGeneration());
+        assertNull(session.getCursor(OFFSET));
+        assertEquals(expected.subList(OFFSET, OFFSET + PAGE_SIZE),
+            getIds(resumed.getResources(OFFSET, OFFSET + PAGE_SIZE)));
+        provider.clear();
+    }
+
+    /**
+     * Builds the same resources into the specified generation of the index.
+     */
+    private static void publish(long generation) throws IOException {
+        try (IndexBuildingResourceProcessor processor = new IndexBuildingResourceProcessor(root.toFile(), generation)) {
+            processor.processResources(createResources());
+        }
+    }
+
+    private static String store(String query) throws IOException {
+        return provider.storeResultList(new SearchBundleProvider("Medication",
+            SearchParameters.parseQueryString(query), session(), Collections.emptyList(), PAGE_SIZE));
+    }
+
+    /**
+     * @return the token of the link to the page at {@link #OFFSET} of the search last served, which holds the cursor
+     *         for the page
+     */
+    private static String getCursorId(String id) {
+        String link = provider.addCursor("http://localhost/fhir?" + Constants.PARAM_PAGINGACTION + "=" + id + "&"
+                + Constants.PARAM_PAGINGOFFSET + "=" + OFFSET + "&" + Constants.PARAM_COUNT + "=" + PAGE_SIZE);
+        assertFalse(link.contains(id));
+        String[] parameters = SearchParameters.parseQueryString(link.substring(link.indexOf('?') + 1))
+            .get(Constants.PARAM_PAGINGACTION);
+        assertNotNull(parameters);
+        return parameters[0];
+    }
+
+    private static String alter(String text) {
+        return (text.charAt(0) == 'A' ? 'B' : 'A') + text.substring(1);
+    }
+
+    private static SearchSession session() throws IOException {
+        Query query = QueryBuilder.createTextSearchBuilder(ExtendedMedication.class, null, null, null, null, null)
+            .build();
+        return new SearchSession(generations, new ResourceCache(), coalescer, ExtendedMedication.class, query, null);
+    }
+
+    private static List<String> getIds(List<IBaseResource> resources) {
+        List<String> result = new ArrayList<>();
+        for (IBaseResource resource : resources) {
+            result.add(resource.getIdElement().getIdPart());
+        }
+        return result;
+    }
+
+    private static List<Resource> createResources() {
+        List<Resource> resources = new ArrayList<>();
+        for (int i = 0; i < MEDICATIONS; i++) {
+            ExtendedMedication medication = new ExtendedMedication();
+            String id = Integer.toString(1000 + i);
+            String name = "paracetamol " + i + " mg tablet";
+            medication.setId(id);
+            medication.setStatus(MedicationStatus.ACTIVE);
+            medication.setLastModified(new DateType("2018-01-01"));
+            Narrative narrative = new Narrative();
+            narrative.setStatus(NarrativeStatus.GENERATED);
+            narrative.setDivAsString("<div><p>" + name + "</p></div>");
+            medication.setText(narrative);
+            medication.getCode().addCoding(new Coding("http://snomed.info/sct", id + "01", name)).setText(name);
+            medication.setMedicationResourceType(MedicationType.UnbrandedProductStrengthForm.getCode());
+            resources.add(medication);
+        }
+        return resources;
+    }
+}
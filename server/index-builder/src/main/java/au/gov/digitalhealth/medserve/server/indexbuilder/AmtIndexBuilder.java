@@ -45,6 +45,34 @@ public class AmtIndexBuilder
     @Parameter(defaultValue = "${project.build.directory}/index", property = "indexLocation")
     private File indexLocation;
 
+    /**
+     * Generation number of the index being built, the index is written to a sub directory of the index location
+     * named for the generation. Defaults to the current time in milliseconds.
+     */
+    @Parameter(property = "indexGeneration")
+    private Long indexGeneration;
+
+    /**
+     * Minimum length of the display text word prefixes indexed for text search.
+     */
+    @Parameter(defaultValue = "" + IndexBuildingResourceProcessor.DEFAULT_DISPLAY_MIN_GRAM,
+            property = "displayMinGram")
+    private int displayMinGram;
+
+    /**
+     * Maximum length of the display text word prefixes indexed for text search, longer prefixes are matched by
+     * expanding them over the display text terms.
+     */
+    @Parameter(defaultValue = "" + IndexBuildingResourceProcessor.DEFAULT_DISPLAY_MAX_GRAM,
+            property = "displayMaxGram")
+    private int displayMaxGram;
+
+    /**
+     * Number of shards each partition of the index is split into by a hash of resource id.
+     */
+    @Parameter(defaultValue = "" + IndexBuildingResourceProcessor.DEFAULT_SHARDS, property = "shards")
+    private int shards;
+
     /**
      * Syndication cache directory
      */
@@ -73,7 +101,12 @@ public class AmtIndexBuilder
         try {
             AmtMedicationResourceGenerator generator =
                     new AmtMedicationResourceGenerator(amtSnapshot.toPath(), pbsExtract.toPath());
-            generator.process(new IndexBuildingResourceProcessor(indexLocation));
+            long generation = indexGeneration == null ? System.currentTimeMillis() : indexGeneration;
+            try (IndexBuildingResourceProcessor processor =
+                    new IndexBuildingResourceProcessor(indexLocation, generation, displayMinGram, displayMaxGram,
+                        shards)) {
+                generator.process(processor);
+            }
         } catch (IOException e) {
             throw new MojoExecutionException("Failed building index", e);
         }
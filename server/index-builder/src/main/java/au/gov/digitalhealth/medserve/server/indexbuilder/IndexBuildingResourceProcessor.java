@@ -1,9 +1,18 @@
 package au.gov.digitalhealth.medserve.server.indexbuilder;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -13,16 +22,24 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.LowerCaseFilterFactory;
 import org.apache.lucene.analysis.core.WhitespaceTokenizerFactory;
 import org.apache.lucene.analysis.custom.CustomAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.ngram.EdgeNGramFilterFactory;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.IntPoint;
-import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.store.Directory;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.suggest.analyzing.AnalyzingInfixSuggester;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Coding;
 import org.hl7.fhir.dstu3.model.DomainResource;
@@ -37,35 +54,176 @@ import org.hl7.fhir.exceptions.FHIRException;
 import au.gov.digitalhealth.medserve.extension.ExtendedMedication;
 import au.gov.digitalhealth.medserve.extension.ExtendedSubstance;
 import au.gov.digitalhealth.medserve.extension.MedicationParentExtension;
+import au.gov.digitalhealth.medserve.extension.MedicationType;
 import au.gov.digitalhealth.medserve.extension.ParentExtendedElement;
 import au.gov.digitalhealth.medserve.extension.SubsidyExtension;
+import au.gov.digitalhealth.medserve.server.indexbuilder.constants.CommitData;
 import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
+import au.gov.digitalhealth.medserve.server.indexbuilder.constants.IndexFiles;
 import au.gov.digitalhealth.medserve.server.indexbuilder.constants.ResourceTypes;
+import au.gov.digitalhealth.medserve.server.indexbuilder.suggest.MedicationSuggester;
 import au.gov.digitalhealth.medserve.transform.processor.MedicationResourceProcessor;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 
-public class IndexBuildingResourceProcessor implements MedicationResourceProcessor {
-
-    private IndexWriter writer;
+/**
+ * Writes resources into a new generation of the index under the index root directory. The generation is built in a
+ * staging directory and only moved into place as <code>&lt;root&gt;/&lt;generation&gt;</code> when the processor is
+ * closed, so a running server never sees a partially written generation.
+ * <p>
+ * Each resource type is written to its own partition, a separate Lucene index in a sub directory of the generation,
+ * see {@link IndexFiles#PARTITIONS}, so the server searches each type without going through the others' terms and
+ * postings. Partitions can also be split into shards by a hash of resource id, see {@link IndexShards}, so a partition
+ * too large for one searcher can be searched a shard at a time and its shards merged. Each shard records its number
+ * and the number of shards in its commit user data, and every partition records when the generation was committed.
+ * <p>
+ * Resource JSON isn't kept in Lucene's stored fields, it is appended to the {@value IndexFiles#RESOURCE_BLOB} file
+ * alongside the index so the server can memory map it, and each document records the offset and length of its JSON in
+ * doc values. Offsets are longs, so the file isn't limited to the 2 GiB of a single mapped buffer.
+ * <p>
+ * Display text is also indexed as edge n-grams of each word in {@value FieldNames#DISPLAY_PREFIX}, so the server can
+ * match word prefixes within the gram sizes with a single term lookup. The gram sizes are recorded in the commit user
+ * data of every partition.
+ * <p>
+ * Documents are sorted in the index by their {@value FieldNames#RANK}, so the most useful resources have the lowest doc
+ * ids, and then by id so resources of the same rank are in the same order however the index is sharded. Results that
+ * score the same, or aren't scored at all, are then returned in rank order, and a search that isn't scored can stop
+ * collecting once it has enough results. Medications rank by their medication resource type, see
+ * {@link #MEDICATION_TYPE_RANK_ORDER}, and then by the length of their display text so shorter, more general, resources
+ * come first. Index sorting only orders documents within a segment, so each partition, or each shard of a sharded
+ * partition, is merged down to a single segment before the generation is published.
+ * <p>
+ * The normalised display text, {@value FieldNames#LAST_MODIFIED}, {@value FieldNames#MEDICATION_RESOURCE_TYPE} and
+ * {@value FieldNames#INGREDIENT_COUNT} are also indexed as doc values so the server can sort results by them.
+ * <p>
+ * The values of the {@link #FACET_FIELDS} are indexed as sorted set doc values so the server can count them over a
+ * search's results. Each value is the token a search for it would use followed by its display, separated by
+ * {@link #FACET_DISPLAY_SEPARATOR}, except for {@value FieldNames#MEDICATION_RESOURCE_TYPE} which already has its
+ * code as sorted doc values.
+ * <p>
+ * The ids referenced by the {@link #INCLUDE_FIELDS} are also indexed as sorted set doc values, so the server can read
+ * them to include the referenced resources in search results. Where the field is also a facet field the id is the
+ * token of its facet value.
+ * <p>
+ * Medications are also added to the suggester in the {@value IndexFiles#SUGGEST_DIRECTORY} sub directory, see
+ * {@link MedicationSuggester}.
+ */
+public class IndexBuildingResourceProcessor implements MedicationResourceProcessor, Closeable {
+
+    private static final String STAGING_SUFFIX = ".building";
+
+    /**
+     * Order medication resource types rank in, unbranded before branded and products before packages.
+     */
+    public static final List<MedicationType> MEDICATION_TYPE_RANK_ORDER = Arrays.asList(
+        MedicationType.UnbrandedProduct, MedicationType.UnbrandedProductStrength, MedicationType.UnbrandedProductForm,
+        MedicationType.UnbrandedProductStrengthForm, MedicationType.BrandedProduct,
+        MedicationType.BrandedProductStrength, MedicationType.BrandedProductForm,
+        MedicationType.BrandedProductStrengthForm, MedicationType.UnbrandedPackage, MedicationType.BrandedPackage,
+        MedicationType.BrandedPackgeContainer);
+
+    private static final long MEDICATION_TYPE_RANK_STEP = 1_000_000L;
+
+    /**
+     * Medication fields whose values the server can count over a search's results.
+     */
+    public static final List<String> FACET_FIELDS = Arrays.asList(FieldNames.FORM, FieldNames.MANUFACTURER,
+        FieldNames.BRAND, FieldNames.SUBSIDY_CODE, FieldNames.MEDICATION_RESOURCE_TYPE);
+
+    public static final char FACET_DISPLAY_SEPARATOR = '\u001f';
+
+    /**
+     * Medication reference fields the server can include the referenced resources of.
+     */
+    public static final List<String> INCLUDE_FIELDS =
+            Arrays.asList(FieldNames.PACKAGE_ITEM, FieldNames.INGREDIENT, FieldNames.MANUFACTURER);
+
+    public static final int DEFAULT_DISPLAY_MIN_GRAM = 1;
+    public static final int DEFAULT_DISPLAY_MAX_GRAM = 15;
+    public static final int DEFAULT_SHARDS = 1;
+
+    private Map<String, IndexWriter[]> writers = new LinkedHashMap<>();
+    private OutputStream blob;
+    private long blobOffset;
+    private AnalyzingInfixSuggester suggester;
+    private long suggestionCount;
+    private Path stagingDirectory;
+    private Path generationDirectory;
     private IParser parser;
     private Map<String, CodeableConcept> formCache = new HashMap<>();
     private Map<String, Set<Reference>> ingredientCache = new HashMap<>();
+    private Map<String, Set<String>> indexedIds = new HashMap<>();
+
+    public IndexBuildingResourceProcessor(File indexRoot, long generation) throws IOException {
+        this(indexRoot, generation, DEFAULT_DISPLAY_MIN_GRAM, DEFAULT_DISPLAY_MAX_GRAM);
+    }
 
-    public IndexBuildingResourceProcessor(File outputDirectory) throws IOException {
+    public IndexBuildingResourceProcessor(File indexRoot, long generation, int displayMinGram, int displayMaxGram)
+            throws IOException {
+        this(indexRoot, generation, displayMinGram, displayMaxGram, DEFAULT_SHARDS);
+    }
+
+    public IndexBuildingResourceProcessor(File indexRoot, long generation, int displayMinGram, int displayMaxGram,
+            int shards) throws IOException {
+        if (displayMinGram < 1 || displayMaxGram < displayMinGram) {
+            throw new IllegalArgumentException(
+                "Invalid display gram sizes, min " + displayMinGram + " max " + displayMaxGram);
+        }
+        if (shards < 1) {
+            throw new IllegalArgumentException("Invalid number of shards " + shards);
+        }
 
         parser = FhirContext.forDstu3().newJsonParser();
         parser.setPrettyPrint(false);
 
-        Directory dir = FSDirectory.open(outputDirectory.toPath());
+        generationDirectory = indexRoot.toPath().resolve(Long.toString(generation));
+        if (Files.exists(generationDirectory)) {
+            throw new IOException("Index generation " + generation + " already exists at " + generationDirectory);
+        }
+        stagingDirectory = indexRoot.toPath().resolve(generation + STAGING_SUFFIX);
+        Files.createDirectories(stagingDirectory);
+
         Analyzer analyzer = CustomAnalyzer.builder()
             .withTokenizer(WhitespaceTokenizerFactory.class)
             .addTokenFilter(LowerCaseFilterFactory.class)
             .build();
+        Analyzer prefixAnalyzer = CustomAnalyzer.builder()
+            .withTokenizer(WhitespaceTokenizerFactory.class)
+            .addTokenFilter(LowerCaseFilterFactory.class)
+            .addTokenFilter(EdgeNGramFilterFactory.class, "minGramSize", Integer.toString(displayMinGram),
+                "maxGramSize", Integer.toString(displayMaxGram))
+            .build();
+        Map<String, Analyzer> fieldAnalyzers = new HashMap<>();
+        fieldAnalyzers.put(FieldNames.DISPLAY_PREFIX, prefixAnalyzer);
+
+        Map<String, String> commitData = new HashMap<>();
+        commitData.put(CommitData.DISPLAY_MIN_GRAM, Integer.toString(displayMinGram));
+        commitData.put(CommitData.DISPLAY_MAX_GRAM, Integer.toString(displayMaxGram));
+
+        for (String partition : IndexFiles.PARTITIONS) {
+            IndexWriter[] shardWriters = new IndexWriter[shards];
+            for (int shard = 0; shard < shards; shard++) {
+                IndexWriterConfig iwc = new IndexWriterConfig(new PerFieldAnalyzerWrapper(analyzer, fieldAnalyzers));
+                iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+                iwc.setIndexSort(new Sort(new SortField(FieldNames.RANK, SortField.Type.LONG),
+                    new SortField(FieldNames.ID, SortField.Type.STRING)));
+                Path directory = stagingDirectory.resolve(partition);
+                if (shards > 1) {
+                    directory = directory.resolve(Integer.toString(shard));
+                }
+                shardWriters[shard] = new IndexWriter(FSDirectory.open(directory), iwc);
 
-        IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
-        iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
-        this.writer = new IndexWriter(dir, iwc);
+                Map<String, String> shardCommitData = new HashMap<>(commitData);
+                if (shards > 1) {
+                    shardCommitData.put(CommitData.SHARD, Integer.toString(shard));
+                    shardCommitData.put(CommitData.SHARD_COUNT, Integer.toString(shards));
+                }
+                shardWriters[shard].setLiveCommitData(shardCommitData.entrySet());
+            }
+            writers.put(partition, shardWriters);
+        }
+        this.blob = new BufferedOutputStream(Files.newOutputStream(stagingDirectory.resolve(IndexFiles.RESOURCE_BLOB)));
+        this.suggester = MedicationSuggester.open(stagingDirectory.resolve(IndexFiles.SUGGEST_DIRECTORY));
     }
 
     @Override
@@ -73,32 +231,118 @@ public class IndexBuildingResourceProcessor implements MedicationResourceProcess
         for (Resource resource : resources) {
             Document document = new Document();
 
-            document.add(new StringField(FieldNames.ID, resource.getId(), Store.YES));
-            document.add(
-                new StringField(FieldNames.RESOURCE_TYPE, resource.getResourceType().name().toLowerCase(), Store.NO));
+            String resourceType = resource.getResourceType().name().toLowerCase();
+            if (!indexedIds.computeIfAbsent(resourceType, t -> new HashSet<>()).add(resource.getId())) {
+                throw new RuntimeException(
+                    "More than one " + resource.getResourceType().name() + " resource with id " + resource.getId());
+            }
+
+            document.add(new StringField(FieldNames.ID, resource.getId(), Store.NO));
+            document.add(new SortedDocValuesField(FieldNames.ID, new BytesRef(resource.getId())));
+            document.add(new StringField(FieldNames.RESOURCE_TYPE, resourceType, Store.NO));
             String text = ((DomainResource) resource).getText().getDiv().allText();
 
             document.add(new TextField(FieldNames.DISPLAY, text, Store.NO));
+            document.add(new TextField(FieldNames.DISPLAY_PREFIX, text, Store.NO));
+            String normalisedDisplay = normaliseDisplay(text);
+            document.add(new StringField(FieldNames.DISPLAY_EXACT, normalisedDisplay, Store.NO));
+            document.add(new SortedDocValuesField(FieldNames.DISPLAY_EXACT, new BytesRef(normalisedDisplay)));
+            document.add(new NumericDocValuesField(FieldNames.RANK, rank(resource, text)));
 
             if (resource instanceof ExtendedMedication) {
                 indextMedicationResource(resource, document);
+                MedicationSuggester.add(suggester, (ExtendedMedication) resource, text);
+                suggestionCount++;
             } else if (resource instanceof Substance) {
                 ExtendedSubstance substance = ExtendedSubstance.class.cast(resource);
                 document.add(
                     new StringField(FieldNames.STATUS, substance.getStatus().toCode(), Store.NO));
-                document.add(
-                    new StringField(FieldNames.LAST_MODIFIED, substance.getLastModified().asStringValue(), Store.NO));
+                indexLastModified(document, substance.getLastModified().asStringValue());
                 indexCodeableConcept(document, substance.getCode(), FieldNames.CODE);
             } else if (resource instanceof Organization) {
                 document.add(new StringField(FieldNames.STATUS, "active", Store.NO));
             } else {
                 throw new RuntimeException("Unknown resource type " + resource.getClass().getCanonicalName());
             }
-            document.add(new StoredField(FieldNames.JSON, parser.encodeResourceToString(resource)));
+            addJson(document, parser.encodeResourceToString(resource));
+
+            IndexWriter[] shardWriters = writers.get(resourceType);
+            shardWriters[IndexShards.shardOf(resource.getId(), shardWriters.length)].addDocument(document);
+        }
+        blob.flush();
+        for (IndexWriter[] shardWriters : writers.values()) {
+            for (IndexWriter writer : shardWriters) {
+                writer.commit();
+            }
+        }
+    }
+
+    /**
+     * Merges each index partition down to a single segment, then commits and closes them, recording when the generation
+     * was committed, and publishes the generation by atomically moving it from its staging directory into place.
+     */
+    @Override
+    public void close() throws IOException {
+        blob.close();
+        if (suggestionCount > 0) {
+            suggester.commit();
+        }
+        suggester.close();
+        String committed = Long.toString(System.currentTimeMillis());
+        for (IndexWriter[] shardWriters : writers.values()) {
+            for (IndexWriter writer : shardWriters) {
+                Map<String, String> commitData = new HashMap<>();
+                writer.getLiveCommitData().forEach(entry -> commitData.put(entry.getKey(), entry.getValue()));
+                commitData.put(CommitData.COMMITTED, committed);
+                writer.setLiveCommitData(commitData.entrySet());
+                writer.forceMerge(1);
+                writer.commit();
+                writer.close();
+                writer.getDirectory().close();
+            }
+        }
+        Files.move(stagingDirectory, generationDirectory, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Normalises display text the way it is matched exactly, lower cased with single spaces between words.
+     */
+    public static String normaliseDisplay(String text) {
+        return text.trim().replaceAll("\\s+", " ").toLowerCase();
+    }
 
-            writer.addDocument(document);
+    private static long rank(Resource resource, String text) {
+        long rank = text.length();
+        if (resource instanceof ExtendedMedication) {
+            String type = ((ExtendedMedication) resource).getMedicationResourceType().getCode();
+            int typeRank = MEDICATION_TYPE_RANK_ORDER.size();
+            for (int i = 0; i < MEDICATION_TYPE_RANK_ORDER.size(); i++) {
+                if (MEDICATION_TYPE_RANK_ORDER.get(i).getCode().getCode().equals(type)) {
+                    typeRank = i;
+                }
+            }
+            rank += typeRank * MEDICATION_TYPE_RANK_STEP;
         }
-        writer.commit();
+        return rank;
+    }
+
+    private void addJson(Document document, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        blob.write(bytes);
+        document.add(new NumericDocValuesField(FieldNames.JSON_OFFSET, blobOffset));
+        document.add(new NumericDocValuesField(FieldNames.JSON_LENGTH, bytes.length));
+        blobOffset += bytes.length;
+    }
+
+    private void indexLastModified(Document document, String lastModified) {
+        // ISO 8601 dates sort chronologically as strings
+        document.add(new StringField(FieldNames.LAST_MODIFIED, lastModified, Store.NO));
+        document.add(new SortedDocValuesField(FieldNames.LAST_MODIFIED, new BytesRef(lastModified)));
+    }
+
+    private void indexIngredientCount(Document document, int count) {
+        document.add(new IntPoint(FieldNames.INGREDIENT_COUNT, count));
+        document.add(new SortedNumericDocValuesField(FieldNames.INGREDIENT_COUNT, count));
     }
 
     private void indextMedicationResource(Resource resource, Document document) {
@@ -107,13 +351,14 @@ public class IndexBuildingResourceProcessor implements MedicationResourceProcess
         document.add(
             new StringField(FieldNames.STATUS, medication.getStatus().toCode(), Store.NO));
 
-        document.add(
-            new StringField(FieldNames.LAST_MODIFIED, medication.getLastModified().asStringValue(), Store.NO));
+        indexLastModified(document, medication.getLastModified().asStringValue());
 
         indexCodeableConcept(document, medication.getCode(), FieldNames.CODE);
 
-        document.add(new StringField(FieldNames.MEDICATION_RESOURCE_TYPE,
-            medication.getMedicationResourceType().getCode(), Store.NO));
+        String medicationResourceType = medication.getMedicationResourceType().getCode();
+        document.add(new StringField(FieldNames.MEDICATION_RESOURCE_TYPE, medicationResourceType, Store.NO));
+        document.add(
+            new SortedDocValuesField(FieldNames.MEDICATION_RESOURCE_TYPE, new BytesRef(medicationResourceType)));
 
         indexParents(document, medication, FieldNames.ANCESTOR);
         indexParents(document, medication, FieldNames.PARENT);
@@ -140,7 +385,7 @@ public class IndexBuildingResourceProcessor implements MedicationResourceProcess
                     throw new RuntimeException("Cannot get reference for ingredient " + ingredient);
                 }
             }
-            document.add(new IntPoint(FieldNames.INGREDIENT_COUNT, medication.getIngredient().size()));
+            indexIngredientCount(document, medication.getIngredient().size());
         }
 
         if (medication.getPackage() != null) {
@@ -176,7 +421,7 @@ public class IndexBuildingResourceProcessor implements MedicationResourceProcess
                     }
                 }
 
-                document.add(new IntPoint(FieldNames.INGREDIENT_COUNT, distinctIngredientSet.size()));
+                indexIngredientCount(document, distinctIngredientSet.size());
             }
         }
 
@@ -223,8 +468,14 @@ public class IndexBuildingResourceProcessor implements MedicationResourceProcess
 
     private void indexReference(Document document, Reference reference, String fieldName, String referenceType)
             throws FHIRException {
-        document.add(new StringField(fieldName, getIdFromReference(reference, referenceType), Store.NO));
+        String id = getIdFromReference(reference, referenceType);
+        document.add(new StringField(fieldName, id, Store.NO));
         document.add(new TextField(fieldName + FieldNames.TEXT_FIELD_SUFFIX, reference.getDisplay(), Store.NO));
+        if (FACET_FIELDS.contains(fieldName)) {
+            indexFacet(document, fieldName, id, reference.getDisplay());
+        } else if (INCLUDE_FIELDS.contains(fieldName)) {
+            document.add(new SortedSetDocValuesField(fieldName, new BytesRef(id)));
+        }
     }
 
     private String getIdFromReference(Reference reference, String referenceType) {
@@ -242,9 +493,20 @@ public class IndexBuildingResourceProcessor implements MedicationResourceProcess
 
     private void indexCoding(Document document, String fieldName, Coding code) {
         document.add(new StringField(fieldName, code.getCode() + "|" + code.getSystem(), Store.NO));
+        // Codes searched for without a system are looked up exactly in the code only field
+        document.add(new StringField(fieldName + FieldNames.SYSTEMLESS_CODE_SUFFIX, code.getCode(), Store.NO));
         if (code.getDisplay() != null && !code.getDisplay().isEmpty()) {
             document.add(new TextField(fieldName + FieldNames.TEXT_FIELD_SUFFIX, code.getDisplay(), Store.NO));
         }
+        indexFacet(document, fieldName,
+            code.getSystem() == null ? code.getCode() : code.getSystem() + "|" + code.getCode(), code.getDisplay());
+    }
+
+    private void indexFacet(Document document, String fieldName, String token, String display) {
+        if (FACET_FIELDS.contains(fieldName)) {
+            document.add(new SortedSetDocValuesField(fieldName,
+                new BytesRef(display == null ? token : token + FACET_DISPLAY_SEPARATOR + display)));
+        }
     }
 
 }
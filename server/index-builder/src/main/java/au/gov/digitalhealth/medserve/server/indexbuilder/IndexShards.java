@@ -0,0 +1,23 @@
+package au.gov.digitalhealth.medserve.server.indexbuilder;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Assigns resources to the shards of a sharded index by a hash of their id. The hash is Murmur3 over the id's UTF-8
+ * bytes rather than {@link String#hashCode()} so numeric ids spread evenly, and it doesn't depend on the JVM, so the
+ * shard a resource is in can be worked out again by anything that knows the number of shards.
+ */
+public final class IndexShards {
+
+    private IndexShards() {
+        throw new AssertionError("Static method helper class not to be constructed!");
+    }
+
+    /**
+     * @return the shard, from 0 to the number of shards - 1, the resource with the specified id belongs in
+     */
+    public static int shardOf(String id, int shardCount) {
+        return Math.floorMod(StringHelper.murmurhash3_x86_32(new BytesRef(id), 0), shardCount);
+    }
+}
@@ -0,0 +1,29 @@
+package au.gov.digitalhealth.medserve.server.indexbuilder.constants;
+
+/**
+ * Keys of the user data the index builder records with each commit, describing how the index was built so the
+ * server can query it accordingly.
+ */
+public final class CommitData {
+
+    /**
+     * Minimum and maximum length of the edge n-grams indexed in {@link FieldNames#DISPLAY_PREFIX}.
+     */
+    public static final String DISPLAY_MIN_GRAM = "display-min-gram";
+    public static final String DISPLAY_MAX_GRAM = "display-max-gram";
+
+    /**
+     * Shard of its partition the index is, and the number of shards the partition was split into.
+     */
+    public static final String SHARD = "shard";
+    public static final String SHARD_COUNT = "shard-count";
+
+    /**
+     * When the generation was committed, in milliseconds since the epoch, the same for every partition and shard of it.
+     */
+    public static final String COMMITTED = "committed";
+
+    private CommitData() {
+        throw new AssertionError("Constants class not to be constructed!");
+    }
+}
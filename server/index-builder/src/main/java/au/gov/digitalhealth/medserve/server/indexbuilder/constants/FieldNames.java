@@ -6,22 +6,28 @@ public final class FieldNames {
     public static final String CODE = "code";
     public static final String CONTAINER = "container";
     public static final String DISPLAY = "display";
+    public static final String DISPLAY_PREFIX = "display-prefix";
+    public static final String DISPLAY_EXACT = "display-exact";
     public static final String FORM = "form";
     public static final String ID = "id";
     public static final String INGREDIENT = "ingredient";
     public static final String IS_BRAND = "is-brand";
     public static final String JSON = "json";
+    public static final String JSON_OFFSET = "json-offset";
+    public static final String JSON_LENGTH = "json-length";
     public static final String MANUFACTURER = "manufacturer";
     public static final String PACKAGE_ITEM = "package-item";
     public static final String ANCESTOR = "ancestor";
     public static final String RESOURCE_TYPE = "resourceType";
     public static final String SUBSIDY_CODE = "subsidy-code";
     public static final String TEXT_FIELD_SUFFIX = "-text";
+    public static final String SYSTEMLESS_CODE_SUFFIX = "-systemless";
     public static final String MEDICATION_RESOURCE_TYPE = "medication-resource-type";
     public static final String PARENT = "parent";
     public static final String STATUS = "status";
     public static final String LAST_MODIFIED = "last-modified";
     public static final String INGREDIENT_COUNT = "ingredient-count";
+    public static final String RANK = "rank";
 
     private FieldNames() {
         throw new AssertionError("Constants class not to be constructed!");
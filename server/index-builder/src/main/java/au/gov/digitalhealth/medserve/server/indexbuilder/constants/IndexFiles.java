@@ -0,0 +1,35 @@
+package au.gov.digitalhealth.medserve.server.indexbuilder.constants;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public final class IndexFiles {
+
+    /**
+     * Sidecar file in each index generation directory holding the JSON of every indexed resource back to back, each
+     * document records where its JSON is with the {@link FieldNames#JSON_OFFSET} and {@link FieldNames#JSON_LENGTH}
+     * doc values.
+     */
+    public static final String RESOURCE_BLOB = "resources.blob";
+
+    /**
+     * Sub directory of each index generation directory holding the Medication suggester's index.
+     */
+    public static final String SUGGEST_DIRECTORY = "suggest";
+
+    /**
+     * Partitions of each index generation, one per resource type. Each partition is a separate Lucene index in the sub
+     * directory named by the lower case resource type, which is also the {@link FieldNames#RESOURCE_TYPE} of its
+     * documents. If the generation is sharded each partition directory instead holds a Lucene index for each shard,
+     * in sub directories numbered from 0.
+     */
+    public static final List<String> PARTITIONS = Collections.unmodifiableList(Arrays.asList(
+        ResourceTypes.MEDICATION_RESOURCE_TYPE_VALUE.toLowerCase(),
+        ResourceTypes.SUBSTANCE_RESOURCE_TYPE_VALUE.toLowerCase(),
+        ResourceTypes.ORGANIZATION_RESOURCE_TYPE_VALUE.toLowerCase()));
+
+    private IndexFiles() {
+        throw new AssertionError("Constants class not to be constructed!");
+    }
+}
@@ -0,0 +1,102 @@
+package au.gov.digitalhealth.medserve.server.indexbuilder.suggest;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.LowerCaseFilterFactory;
+import org.apache.lucene.analysis.core.WhitespaceTokenizerFactory;
+import org.apache.lucene.analysis.custom.CustomAnalyzer;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.analyzing.AnalyzingInfixSuggester;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.hl7.fhir.dstu3.model.Coding;
+
+import au.gov.digitalhealth.medserve.extension.ExtendedMedication;
+
+/**
+ * Reads and writes the infix suggester the index builder creates for Medication resources. Each Medication is
+ * suggested from the words of its narrative text and the displays and codes of its codings, and carries its id,
+ * medication resource type and narrative text as the suggestion's payload, so suggestions are served entirely from
+ * the suggester without loading any resource.
+ * <p>
+ * Suggestions are filtered by status and medication resource type through the suggester's contexts, and shorter
+ * narratives, the more general medications, are suggested first.
+ */
+public final class MedicationSuggester {
+
+    private static final String STATUS_CONTEXT_PREFIX = "status:";
+    private static final String TYPE_CONTEXT_PREFIX = "type:";
+    private static final char PAYLOAD_SEPARATOR = '\u001f';
+
+    private MedicationSuggester() {
+        throw new AssertionError("Static method helper class not to be constructed!");
+    }
+
+    /**
+     * Opens the suggester in the specified directory, which is created if it doesn't exist.
+     */
+    public static AnalyzingInfixSuggester open(Path directory) throws IOException {
+        Analyzer analyzer = CustomAnalyzer.builder()
+            .withTokenizer(WhitespaceTokenizerFactory.class)
+            .addTokenFilter(LowerCaseFilterFactory.class)
+            .build();
+        return new AnalyzingInfixSuggester(FSDirectory.open(directory), analyzer, analyzer,
+            AnalyzingInfixSuggester.DEFAULT_MIN_PREFIX_CHARS, false, true, false);
+    }
+
+    public static void add(AnalyzingInfixSuggester suggester, ExtendedMedication medication, String display)
+            throws IOException {
+        Set<String> text = new LinkedHashSet<>();
+        text.add(display);
+        for (Coding coding : medication.getCode().getCoding()) {
+            if (coding.hasDisplay() && !display.contains(coding.getDisplay())) {
+                text.add(coding.getDisplay());
+            }
+            text.add(coding.getCode());
+        }
+
+        String type = medication.getMedicationResourceType().getCode();
+        Set<BytesRef> contexts = new HashSet<>();
+        contexts.add(new BytesRef(STATUS_CONTEXT_PREFIX + medication.getStatus().toCode()));
+        contexts.add(new BytesRef(TYPE_CONTEXT_PREFIX + type));
+
+        suggester.add(new BytesRef(String.join(" ", text)), contexts, Integer.MAX_VALUE - display.length(),
+            new BytesRef(medication.getIdElement().getIdPart() + PAYLOAD_SEPARATOR + type + PAYLOAD_SEPARATOR
+                    + display));
+    }
+
+    /**
+     * Suggests active Medications with all of the words of the specified text, the last of which is matched as the
+     * start of a word as it is likely still being typed, optionally limited to the specified medication resource
+     * types.
+     */
+    public static List<Suggestion> lookup(AnalyzingInfixSuggester suggester, String text, Set<String> types,
+            int limit) throws IOException {
+        BooleanQuery.Builder contextQuery = new BooleanQuery.Builder();
+        suggester.addContextToQuery(contextQuery, new BytesRef(STATUS_CONTEXT_PREFIX + "active"), Occur.FILTER);
+        if (types != null && !types.isEmpty()) {
+            BooleanQuery.Builder typeQuery = new BooleanQuery.Builder();
+            for (String type : types) {
+                suggester.addContextToQuery(typeQuery, new BytesRef(TYPE_CONTEXT_PREFIX + type), Occur.SHOULD);
+            }
+            contextQuery.add(typeQuery.build(), Occur.FILTER);
+        }
+
+        List<LookupResult> results = suggester.lookup(text, contextQuery.build(), limit, true, false);
+        List<Suggestion> suggestions = new ArrayList<>(results.size());
+        for (LookupResult result : results) {
+            String[] payload = result.payload.utf8ToString().split(String.valueOf(PAYLOAD_SEPARATOR), 3);
+            suggestions.add(new Suggestion(payload[0], payload[2], payload[1]));
+        }
+        return suggestions;
+    }
+}
@@ -0,0 +1,35 @@
+package au.gov.digitalhealth.medserve.server.indexbuilder.suggest;
+
+/**
+ * A Medication suggested for some typed text, carrying only what is needed to show and select it.
+ */
+public final class Suggestion {
+
+    private final String id;
+    private final String display;
+    private final String medicationResourceType;
+
+    public Suggestion(String id, String display, String medicationResourceType) {
+        this.id = id;
+        this.display = display;
+        this.medicationResourceType = medicationResourceType;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getDisplay() {
+        return display;
+    }
+
+    public String getMedicationResourceType() {
+        return medicationResourceType;
+    }
+
+    @Override
+    public String toString() {
+        return "Suggestion [id=" + id + ", display=" + display + ", medicationResourceType=" + medicationResourceType
+                + "]";
+    }
+}
@@ -0,0 +1,47 @@
+package au.gov.digitalhealth.medserve.server.indexbuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class IndexShardsTest {
+
+    /**
+     * The shard of an id must never change, or an index built by one version couldn't be read by id by another.
+     */
+    @Test
+    public void shardOfIsStable() {
+        assertEquals(1, IndexShards.shardOf("1000", 3));
+        assertEquals(1, IndexShards.shardOf("1001", 3));
+        assertEquals(2, IndexShards.shardOf("1002", 3));
+        assertEquals(2, IndexShards.shardOf("sub1", 3));
+        assertEquals(1, IndexShards.shardOf("org1", 3));
+
+        assertEquals(0, IndexShards.shardOf("1000", 4));
+        assertEquals(3, IndexShards.shardOf("1001", 4));
+        assertEquals(2, IndexShards.shardOf("1002", 4));
+        assertEquals(3, IndexShards.shardOf("sub1", 4));
+        assertEquals(1, IndexShards.shardOf("org1", 4));
+    }
+
+    @Test
+    public void shardOfSpreadsIdsOverEveryShard() {
+        int shardCount = 5;
+        int[] counts = new int[shardCount];
+        for (int i = 0; i < 10000; i++) {
+            int shard = IndexShards.shardOf(Integer.toString(100000 + i), shardCount);
+            assertTrue(shard >= 0 && shard < shardCount);
+            counts[shard]++;
+        }
+        for (int count : counts) {
+            assertTrue("Uneven shards " + count, count > 1600 && count < 2400);
+        }
+    }
+
+    @Test
+    public void singleShardHoldsEveryId() {
+        assertEquals(0, IndexShards.shardOf("1000", 1));
+        assertEquals(0, IndexShards.shardOf("org1", 1));
+    }
+}